@@ -6,11 +6,20 @@
 package edu.wpi.first.wpijavacv;
 
 import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvMemBlock;
 import com.googlecode.javacv.cpp.opencv_core.CvMemStorage;
+import com.googlecode.javacv.cpp.opencv_core.CvPoint;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
 import com.googlecode.javacv.cpp.opencv_core.CvSeq;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_core.IplROI;
 import com.googlecode.javacv.cpp.opencv_imgproc;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 /**
  *
@@ -18,6 +27,32 @@ import java.util.ArrayList;
  */
 public class DaisyExtensions
 {
+    /**
+     * Limits on the bounding box and area of a contour, checked before any hull
+     * is computed. The bounds are exclusive and the ratio is height / width.
+     * The fields can be changed between frames, the filter is never copied.
+     */
+    public static class ContourFilter
+    {
+        public double minWidth = 0;
+        public double maxWidth = Double.MAX_VALUE;
+        public double minRatio = 0;
+        public double maxRatio = Double.MAX_VALUE;
+        public double minArea = 0; // Not checked if 0
+
+        public boolean accepts(CvSeq contour)
+        {
+            // Contours from cvFindContours already know their bounding box, so this is cheap
+            CvRect rect = opencv_imgproc.cvBoundingRect(contour, 0);
+            double ratio = ((double) rect.height()) / ((double) rect.width());
+            if (rect.width() <= minWidth || rect.width() >= maxWidth || ratio <= minRatio || ratio >= maxRatio)
+            {
+                return false;
+            }
+            return minArea == 0 || Math.abs(opencv_imgproc.cvContourArea(contour, opencv_core.CV_WHOLE_SEQ, 0)) > minArea;
+        }
+    }
+
     public static CvSeq getCvSeq(WPIContour contour)
     {
         return contour.getCVSeq();
@@ -37,14 +72,15 @@ public class DaisyExtensions
 
     public static WPIColorImage makeWPIColorImage(IplImage arr)
     {
-        IplImage tempImage = IplImage.create(arr.cvSize(), arr.depth(), 1);
+        IplImage tempImage = IplImage.create(arr.cvSize(), arr.depth(), arr.nChannels());
         opencv_core.cvCopy(arr, tempImage);
         return new WPIColorImage(tempImage);
     }
 
     public static WPIBinaryImage makeWPIBinaryImage(IplImage arr)
     {
-        IplImage tempImage = IplImage.create(arr.cvSize(), arr.depth(), 1);
+        // cvGetSize is the size of the region of interest if arr has one
+        IplImage tempImage = IplImage.create(opencv_core.cvGetSize(arr), arr.depth(), 1);
         opencv_core.cvCopy(arr, tempImage);
         return new WPIBinaryImage(tempImage);
     }
@@ -54,41 +90,414 @@ public class DaisyExtensions
         return image.image;
     }
 
-    private static CvMemStorage storage;
-    private static ArrayList<CvSeq> thingsToDispose;
+    // Native images handed out by acquireImage and not in use, reused by size
+    private static ArrayList<IplImage> imagePool = new ArrayList<IplImage>();
+    private static long imageAllocations = 0;
+    private static long imageFrees = 0;
+    
+    // Every image allocated by acquireImage counts as live until freeImage or trimImagePool frees it,
+    // whether it is in use or in the pool. Images owned by WPI wrappers (WPIColorImage, makeWPI*Image)
+    // are freed by their dispose and aren't counted.
+    private static int liveImages = 0;
+    private static long liveImageBytes = 0;
+    
+    // Where each image in use was acquired, only kept while leak tracking is on
+    private static IdentityHashMap<IplImage, Throwable> acquiredAt = null;
+
+    /* Returns a pooled image of the given size and format, only allocating one if none is free */
+    public static synchronized IplImage acquireImage(int width, int height, int depth, int channels)
+    {
+        IplImage image = null;
+        for (int i = imagePool.size() - 1; i >= 0; i--)
+        {
+            IplImage pooled = imagePool.get(i);
+            if (pooled.width() == width && pooled.height() == height
+                    && pooled.depth() == depth && pooled.nChannels() == channels)
+            {
+                image = imagePool.remove(i);
+                break;
+            }
+        }
+        if (image == null)
+        {
+            image = IplImage.create(width, height, depth, channels);
+            imageAllocations++;
+            liveImages++;
+            liveImageBytes += image.imageSize();
+        }
+        if (acquiredAt != null)
+        {
+            acquiredAt.put(image, new Throwable("Acquired " + width + "x" + height + "x" + channels));
+        }
+        return image;
+    }
+
+    /* Gives an image from acquireImage back to the pool */
+    public static synchronized void releaseImage(IplImage image)
+    {
+        if (image != null)
+        {
+            opencv_core.cvResetImageROI(image);
+            imagePool.add(image);
+            if (acquiredAt != null)
+            {
+                acquiredAt.remove(image);
+            }
+        }
+    }
+
+    /* Frees an image from acquireImage instead of pooling it, for images that won't be needed again */
+    public static synchronized void freeImage(IplImage image)
+    {
+        if (image != null)
+        {
+            if (acquiredAt != null)
+            {
+                acquiredAt.remove(image);
+            }
+            free(image);
+        }
+    }
+
+    /* Frees every image in the pool (e.g. the ones of the old size after a resolution change), returns how many */
+    public static synchronized int trimImagePool()
+    {
+        int count = imagePool.size();
+        for (IplImage image : imagePool)
+        {
+            free(image);
+        }
+        imagePool.clear();
+        return count;
+    }
+
+    private static void free(IplImage image)
+    {
+        liveImages--;
+        liveImageBytes -= image.imageSize();
+        imageFrees++;
+        image.release();
+    }
+
+    /* Number of native images the pool had to allocate, constant once processing is in a steady state */
+    public static synchronized long getImageAllocationCount()
+    {
+        return imageAllocations;
+    }
+
+    public static synchronized long getImageFreeCount()
+    {
+        return imageFrees;
+    }
+
+    /* Images allocated by acquireImage and not freed, in use or pooled */
+    public static synchronized int getLiveImageCount()
+    {
+        return liveImages;
+    }
+
+    public static synchronized long getLiveImageBytes()
+    {
+        return liveImageBytes;
+    }
+
+    public static synchronized int getPooledImageCount()
+    {
+        return imagePool.size();
+    }
+
+    /* Size of the blocks the contour storage of every context holds on to, as of their last releaseMemory */
+    public static long getStorageBytes()
+    {
+        long bytes = 0;
+        synchronized (contexts)
+        {
+            for (ContourContext context : contexts.keySet())
+            {
+                bytes += context.storageBytes;
+            }
+        }
+        return bytes;
+    }
+
+    /* Starts (forgetting what was tracked so far) or stops remembering where images in use were acquired */
+    public static synchronized void setLeakTracking(boolean tracking)
+    {
+        acquiredAt = tracking ? new IdentityHashMap<IplImage, Throwable>() : null;
+    }
+
+    /*
+     * Prints the images acquired since leak tracking started that weren't released, counted by
+     * where they were acquired, and returns how many there are. Images that are in use for good
+     * (like the widget's own) show up too, a leak is a count that keeps growing.
+     */
+    public static synchronized int reportLeaks(PrintStream out)
+    {
+        if (acquiredAt == null)
+        {
+            return 0;
+        }
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (Throwable site : acquiredAt.values())
+        {
+            StringBuilder key = new StringBuilder(site.getMessage());
+            StackTraceElement[] trace = site.getStackTrace();
+            for (int i = 1; i < Math.min(trace.length, 5); i++) // Skip acquireImage itself
+            {
+                key.append("\n    at ").append(trace[i]);
+            }
+            Integer count = counts.get(key.toString());
+            counts.put(key.toString(), (count == null) ? 1 : count + 1);
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet())
+        {
+            out.println(entry.getValue() + " x " + entry.getKey());
+        }
+        return acquiredAt.size();
+    }
+
+    // Every context that isn't released or collected, for getStorageBytes
+    private static final Map<ContourContext, Boolean> contexts = new WeakHashMap<ContourContext, Boolean>();
+
+    // Behind the static contour functions below, which predate ContourContext
+    private static ContourContext defaultContext;
+
+    private static synchronized ContourContext defaultContext()
+    {
+        if (defaultContext == null)
+        {
+            defaultContext = new ContourContext();
+        }
+        return defaultContext;
+    }
 
+    /* The static contour functions share one context, so only one thread may use them. Give each
+     * pipeline a ContourContext instead. */
+    @Deprecated
     public static void init()
     {
-        storage = CvMemStorage.create();
+        defaultContext();
     }
 
+    @Deprecated
     public static WPIContour[] findConvexContours(WPIBinaryImage image)
     {
-        image.validateDisposed();
+        return defaultContext().findConvexContours(image);
+    }
 
-        IplImage tempImage = IplImage.create(image.image.cvSize(), image.image.depth(), 1);
+    @Deprecated
+    public static WPIContour[] findConvexContours(WPIBinaryImage image, int offsetX, int offsetY)
+    {
+        return defaultContext().findConvexContours(image, offsetX, offsetY);
+    }
+
+    @Deprecated
+    public static WPIContour[] findConvexContours(IplImage image, int offsetX, int offsetY)
+    {
+        return defaultContext().findConvexContours(image, offsetX, offsetY);
+    }
 
-        opencv_core.cvCopy(image.image, tempImage);
+    @Deprecated
+    public static WPIContour[] findConvexContours(IplImage image, int offsetX, int offsetY, ContourFilter filter)
+    {
+        return defaultContext().findConvexContours(image, offsetX, offsetY, filter);
+    }
 
-        CvSeq contours = new CvSeq();
-        opencv_imgproc.cvFindContours(tempImage, storage, contours, 256, opencv_imgproc.CV_RETR_LIST, opencv_imgproc.CV_CHAIN_APPROX_TC89_KCOS);
-        ArrayList<WPIContour> results = new ArrayList();
-        while (!WPIDisposable.isNull(contours)) {
-            // Sklansky's Algorithm
-            CvSeq convexContour = opencv_imgproc.cvConvexHull2(contours, storage, opencv_imgproc.CV_CLOCKWISE, 1);
-            WPIContour contour = new WPIContour(opencv_core.cvCloneSeq(convexContour, storage));
-            results.add(contour);
-            contours = contours.h_next();
-        }
+    @Deprecated
+    public static WPIContour[] findHollowConvexContours(IplImage image, int offsetX, int offsetY, ContourFilter filter,
+            double minHoleFraction)
+    {
+        return defaultContext().findHollowConvexContours(image, offsetX, offsetY, filter, minHoleFraction);
+    }
 
-        tempImage.release();
-        WPIContour[] array = new WPIContour[results.size()];
-        return results.toArray(array);
+    @Deprecated
+    public static boolean approxQuadrilateral(WPIContour contour, double accuracy, int[] xs, int[] ys, int offset)
+    {
+        return defaultContext().approxQuadrilateral(contour, accuracy, xs, ys, offset);
     }
 
+    @Deprecated
     public static void releaseMemory()
     {
-        opencv_core.cvClearMemStorage(storage);
+        defaultContext().releaseMemory();
+    }
+
+    /**
+     * The contour storage and scratch space of one pipeline (e.g. one camera's widget).
+     * A context may only be used by one thread at a time, but contexts on different
+     * threads don't share anything except the image pool, which is synchronized.
+     * The contours it returns are valid until its next releaseMemory. Once released,
+ * a context can't be used again.
+     */
+    public static class ContourContext
+    {
+        private CvMemStorage storage = CvMemStorage.create();
+        private final CvPoint quadPoints = new CvPoint(4); // Reused by approxQuadrilateral
+        private volatile long storageBytes = 0;
+
+        public ContourContext()
+        {
+            synchronized (contexts)
+            {
+                contexts.put(this, Boolean.TRUE);
+            }
+        }
+
+        public WPIContour[] findConvexContours(WPIBinaryImage image)
+        {
+            return findConvexContours(image, 0, 0);
+        }
+
+        // The offset is added to every contour point (for images cut out of a region of interest)
+        public WPIContour[] findConvexContours(WPIBinaryImage image, int offsetX, int offsetY)
+        {
+            image.validateDisposed();
+            return findConvexContours(image.image, offsetX, offsetY);
+        }
+
+        // Works on a binary IplImage directly, so it does not need to be copied into a WPIBinaryImage first.
+        // If the image has a region of interest only that part is searched, and the contours are in full
+        // image coordinates.
+        public WPIContour[] findConvexContours(IplImage image, int offsetX, int offsetY)
+        {
+            return findConvexContours(image, offsetX, offsetY, null);
+        }
+
+        // Contours the filter rejects are skipped before their convex hull is computed or cloned,
+        // which saves time and storage on noisy frames. A null filter accepts everything.
+        public WPIContour[] findConvexContours(IplImage image, int offsetX, int offsetY, ContourFilter filter)
+        {
+            return findContours(image, offsetX, offsetY, filter, opencv_imgproc.CV_RETR_LIST, 0.0);
+        }
+
+        // Finds hollow shapes (like a rectangle of retro-reflective tape) without filling them in first.
+        // Uses the two level contour hierarchy: only outer contours with a hole inside them are kept,
+        // and the hole's bounding box has to cover at least minHoleFraction of the outer one's.
+        // The convex hulls of the outer contours are returned.
+        public WPIContour[] findHollowConvexContours(IplImage image, int offsetX, int offsetY, ContourFilter filter,
+                double minHoleFraction)
+        {
+            return findContours(image, offsetX, offsetY, filter, opencv_imgproc.CV_RETR_CCOMP, minHoleFraction);
+        }
+
+        private WPIContour[] findContours(IplImage image, int offsetX, int offsetY, ContourFilter filter, int mode,
+                double minHoleFraction)
+        {
+            checkNotReleased();
+            int width = image.width();
+            int height = image.height();
+            IplROI roi = image.roi();
+            if (!WPIDisposable.isNull(roi))
+            {
+                width = roi.width();
+                height = roi.height();
+                offsetX += roi.xOffset();
+                offsetY += roi.yOffset();
+            }
+
+            // cvFindContours destroys its input, so it gets a pooled copy
+            IplImage tempImage = acquireImage(width, height, image.depth(), 1);
+
+            opencv_core.cvCopy(image, tempImage);
+
+            CvSeq contours = new CvSeq();
+            opencv_imgproc.cvFindContours(tempImage, storage, contours, 256, mode, opencv_imgproc.CV_CHAIN_APPROX_TC89_KCOS,
+                    opencv_core.cvPoint(offsetX, offsetY));
+            ArrayList<WPIContour> results = new ArrayList();
+            // With CV_RETR_CCOMP the top level list only holds outer contours, their holes hang off v_next
+            while (!WPIDisposable.isNull(contours)) {
+                if ((filter != null && !filter.accepts(contours))
+                        || (mode == opencv_imgproc.CV_RETR_CCOMP && !hasHole(contours, minHoleFraction))) {
+                    contours = contours.h_next();
+                    continue;
+                }
+                // Sklansky's Algorithm
+                CvSeq convexContour = opencv_imgproc.cvConvexHull2(contours, storage, opencv_imgproc.CV_CLOCKWISE, 1);
+                WPIContour contour = new WPIContour(opencv_core.cvCloneSeq(convexContour, storage));
+                results.add(contour);
+                contours = contours.h_next();
+            }
+
+            releaseImage(tempImage);
+            WPIContour[] array = new WPIContour[results.size()];
+            return results.toArray(array);
+        }
+
+        // Same approximation as WPIContour.approxPolygon, but the corners are copied straight into
+        // xs and ys (from offset on) instead of into a WPIPolygon and WPIPoint objects. Returns false,
+        // leaving xs and ys alone, if the approximation isn't a convex quadrilateral.
+        public boolean approxQuadrilateral(WPIContour contour, double accuracy, int[] xs, int[] ys, int offset)
+        {
+            checkNotReleased();
+            CvSeq seq = contour.getCVSeq();
+            CvSeq polygon = opencv_imgproc.cvApproxPoly(seq, seq.header_size(), storage, opencv_imgproc.CV_POLY_APPROX_DP,
+                    accuracy, 0);
+            if (polygon.total() != 4 || opencv_imgproc.cvCheckContourConvexity(polygon) == 0)
+            {
+                return false;
+            }
+            opencv_core.cvCvtSeqToArray(polygon, quadPoints.position(0), opencv_core.CV_WHOLE_SEQ);
+            for (int i = 0; i < 4; i++)
+            {
+                quadPoints.position(i);
+                xs[offset + i] = quadPoints.x();
+                ys[offset + i] = quadPoints.y();
+            }
+            quadPoints.position(0);
+            return true;
+        }
+
+        // Frees the contours found since the last call (the storage keeps its blocks for reuse)
+        public void releaseMemory()
+        {
+            checkNotReleased();
+            long blocks = 0;
+            for (CvMemBlock block = storage.bottom(); block != null && !block.isNull(); block = block.next())
+            {
+                blocks++;
+            }
+            storageBytes = blocks * storage.block_size();
+            opencv_core.cvClearMemStorage(storage);
+        }
+
+        // Frees the storage, for contexts that won't be used again (otherwise the garbage collector does).
+        // Releasing a context twice does nothing.
+        public void release()
+        {
+            if (storage == null)
+            {
+                return;
+            }
+            synchronized (contexts)
+            {
+                contexts.remove(this);
+            }
+            storage.release();
+            storage = null;
+            storageBytes = 0;
+        }
+
+        private void checkNotReleased()
+        {
+            if (storage == null)
+            {
+                throw new IllegalStateException("ContourContext used after release()");
+            }
+        }
+    }
+
+    private static boolean hasHole(CvSeq outer, double minHoleFraction)
+    {
+        CvRect box = opencv_imgproc.cvBoundingRect(outer, 0);
+        double minHoleArea = minHoleFraction * box.width() * box.height();
+        for (CvSeq hole = outer.v_next(); !WPIDisposable.isNull(hole); hole = hole.h_next())
+        {
+            CvRect holeBox = opencv_imgproc.cvBoundingRect(hole, 0);
+            if ((double) holeBox.width() * holeBox.height() >= minHoleArea)
+            {
+                return true;
+            }
+        }
+        return false;
     }
-    
 }
@@ -0,0 +1,425 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays sample image trees through processImage without a display or a robot,
+ * for soak testing and profiling. Frames are run as fast as possible, or paced
+ * at a fixed camera rate, and one CSV row is written per frame with the result
+ * and the time spent in each stage. Recorded matches (.krec segments written by
+ * FrameRecorder) are replayed the same way, with the recorded result next to
+ * the replayed one. They are streamed a frame at a time rather than loaded up
+ * front (see RecordingFrameSource), after the images of every pass.
+ *
+ * Usage: BatchReplayRunner [options] <image or recording dir or file>...
+ *   -settings <file>   settings file to load (default KrunchCVSettings.txt)
+ *   -iterations <n>    number of passes over all images (default 1)
+ *   -fps <rate>        pace frames at this rate, 0 for as fast as possible (default 0)
+ *   -out <file>        CSV output (default stdout)
+ *   -roi               turn on region of interest tracking
+ *   -pyramid           look for the pyramid goal (e.g. on "Pyramid Reference Images")
+ *   -trace <file>      replay the robot's values (e.g. "Heading") from a TableTrace, on the frame clock
+ *   -tablelog <file>   write every put and get of the (local) table to a file
+ *   -soak <minutes>    instead of a CSV, replay the frames for this long and check native memory doesn't grow
+ *   -soaktolerance <MB> growth of the process' native memory the soak allows (default 32)
+ *
+ * A soak run samples native memory every minute: the images and contour
+ * storage DaisyExtensions keeps track of, and the process' committed memory
+ * outside the Java heap, which catches what isn't tracked. It exits with 1
+ * if after the first minute the tracked memory grew at all or the process'
+ * grew by more than the tolerance, and lists the images still acquired.
+ *
+ * The widget runs on local tables (see LocalTable), so results are published
+ * the same way they are to the robot.
+ *
+ * @author sebastian
+ */
+public class BatchReplayRunner
+{
+    public static void main(String[] args)
+    {
+        String settingsFilename = KrunchCVWidget.DEFAULT_CSV_FILENAME;
+        String outFilename = null;
+        int iterations = 1;
+        double fps = 0.0;
+        boolean roiTracking = false;
+        boolean pyramidGoals = false;
+        String traceFilename = null;
+        String tableLogFilename = null;
+        double soakMinutes = 0.0;
+        double soakToleranceMB = 32.0;
+        List<File> roots = new ArrayList<File>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-settings") && i + 1 < args.length)
+            {
+                settingsFilename = args[++i];
+            }
+            else if (args[i].equals("-iterations") && i + 1 < args.length)
+            {
+                iterations = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-fps") && i + 1 < args.length)
+            {
+                fps = Double.parseDouble(args[++i]);
+            }
+            else if (args[i].equals("-out") && i + 1 < args.length)
+            {
+                outFilename = args[++i];
+            }
+            else if (args[i].equals("-roi"))
+            {
+                roiTracking = true;
+            }
+            else if (args[i].equals("-pyramid"))
+            {
+                pyramidGoals = true;
+            }
+            else if (args[i].equals("-trace") && i + 1 < args.length)
+            {
+                traceFilename = args[++i];
+            }
+            else if (args[i].equals("-tablelog") && i + 1 < args.length)
+            {
+                tableLogFilename = args[++i];
+            }
+            else if (args[i].equals("-soak") && i + 1 < args.length)
+            {
+                soakMinutes = Double.parseDouble(args[++i]);
+            }
+            else if (args[i].equals("-soaktolerance") && i + 1 < args.length)
+            {
+                soakToleranceMB = Double.parseDouble(args[++i]);
+            }
+            else
+            {
+                roots.add(new File(args[i]));
+            }
+        }
+
+        if (roots.isEmpty())
+        {
+            System.out.println("Usage: BatchReplayRunner [-settings file] [-iterations n] [-fps rate] [-out file] [-roi] [-pyramid] "
+                    + "[-trace file] [-tablelog file] [-soak minutes] [-soaktolerance MB] "
+                    + "<image or recording dir or file>...");
+            return;
+        }
+
+        try
+        {
+            List<SampleFrame> frames = new ArrayList<SampleFrame>();
+            List<File> recordings = new ArrayList<File>();
+            for (File root : roots)
+            {
+                frames.addAll(SampleFrame.loadTree(root, recordings));
+            }
+            RecordingFrameSource.sortSegments(recordings);
+            if (frames.isEmpty() && recordings.isEmpty())
+            {
+                System.err.println("No images found");
+                return;
+            }
+
+            PrintWriter csv = (outFilename != null) ? new PrintWriter(new FileWriter(outFilename))
+                    : new PrintWriter(System.out);
+            TableTrace trace = (traceFilename != null) ? TableTrace.load(new File(traceFilename)) : null;
+            LocalTable table = new LocalTable();
+            table.setLogging(tableLogFilename != null);
+            KrunchCVWidget widget = KrunchCVWidget.createOffline(settingsFilename, table, new LocalTable());
+            widget.ROI_TRACKING_PROPERTY.setValue(roiTracking);
+            widget.PYRAMID_GOALS_PROPERTY.setValue(pyramidGoals);
+            if (soakMinutes > 0.0)
+            {
+                boolean passed = soak(widget, frames, recordings, fps, soakMinutes, (long)(soakToleranceMB * 1048576));
+                System.exit(passed ? 0 : 1);
+            }
+            run(widget, frames, recordings, iterations, fps, table, trace, csv);
+            csv.close();
+            if (tableLogFilename != null)
+            {
+                PrintWriter tableLog = new PrintWriter(new FileWriter(tableLogFilename));
+                table.writeLog(tableLog);
+                tableLog.close();
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    /* trace may be null. It is replayed on the frame clock when pacing, on the wall clock otherwise */
+    static void run(KrunchCVWidget widget, List<SampleFrame> frames, List<File> recordings, int iterations, double fps,
+            LocalTable table, TableTrace trace, PrintWriter csv) throws IOException
+    {
+        csv.print("iteration,file,width,height,found,azimuth,range,filtered_azimuth,filtered_range,confidence");
+        for (String stage : KrunchCVWidget.STAGE_NAMES)
+        {
+            csv.print("," + stage + "_us");
+        }
+        csv.println(",late_us,recorded_found,recorded_azimuth,recorded_range");
+
+        long periodNanos = (fps > 0.0) ? (long)(1000000000.0 / fps) : 0;
+        long startTime = System.nanoTime();
+        long frameNumber = 0;
+        int lateFrames = 0;
+        int recordedFrames = 0, recordedMismatches = 0; // Replayed frames whose found differs from the recording
+        long warmAllocations = 0; // Native image allocations after the first pass
+
+        for (int iteration = 0; iteration < iterations; iteration++)
+        {
+            ReplayFrames replay = new ReplayFrames(frames, recordings);
+            while (replay.next())
+            {
+                // Wait for the frame's slot when pacing, late frames are still processed
+                long lateNanos = 0;
+                if (periodNanos > 0)
+                {
+                    long deadline = startTime + frameNumber * periodNanos;
+                    lateNanos = System.nanoTime() - deadline;
+                    if (lateNanos < 0)
+                    {
+                        sleepNanos(-lateNanos);
+                        lateNanos = 0;
+                    }
+                    else if (lateNanos > periodNanos)
+                    {
+                        lateFrames++;
+                    }
+                }
+                if (trace != null)
+                {
+                    trace.replayUntil((periodNanos > 0) ? frameNumber * periodNanos : System.nanoTime() - startTime, table);
+                }
+                frameNumber++;
+
+                widget.processImage(replay.work);
+
+                TargetFilter filter = widget.getTargetFilter();
+                csv.format("%d,%s,%d,%d,%b,%.3f,%.3f,%.3f,%.3f,%.3f", iteration, replay.name,
+                        replay.work.getWidth(), replay.work.getHeight(), widget.isTargetFound(),
+                        widget.getTargetAzimuth(), widget.getTargetRange(),
+                        filter.getAzimuth(), filter.getRange(), filter.getConfidence());
+                for (int stage = 0; stage < KrunchCVWidget.STAGE_NAMES.length; stage++)
+                {
+                    csv.format(",%.1f", widget.getStageNanos(stage) / 1000.0);
+                }
+                csv.format(",%.1f", lateNanos / 1000.0);
+                if (replay.recordedResult != null)
+                {
+                    boolean recordedFound = replay.recordedResult[TargetResultPublisher.FOUND] != 0.0;
+                    csv.format(",%b,%.3f,%.3f%n", recordedFound, replay.recordedResult[TargetResultPublisher.AZIMUTH],
+                            replay.recordedResult[TargetResultPublisher.RANGE]);
+                    recordedFrames++;
+                    if (recordedFound != widget.isTargetFound())
+                    {
+                        recordedMismatches++;
+                    }
+                }
+                else
+                {
+                    csv.println(",,,");
+                }
+            }
+            if (iteration == 0)
+            {
+                warmAllocations = DaisyExtensions.getImageAllocationCount();
+            }
+        }
+        csv.flush();
+
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+        System.err.format("%d frames in %.2f seconds (%.2f frames per second), %d more than a frame late, "
+                + "%.1f%% searched a region of interest only%n",
+                frameNumber, seconds, frameNumber / seconds, lateFrames, 100.0 * widget.getRoiFraction());
+        System.err.format("%d native images allocated after the first pass%n",
+                DaisyExtensions.getImageAllocationCount() - warmAllocations);
+        if (recordedFrames > 0)
+        {
+            System.err.format("%d recorded frames, %d found a target where the recording didn't or the other way around%n",
+                    recordedFrames, recordedMismatches);
+        }
+    }
+
+    /* Replays the frames until minutes have passed, returns false if native memory grew (see above) */
+    static boolean soak(KrunchCVWidget widget, List<SampleFrame> frames, List<File> recordings, double fps,
+            double minutes, long toleranceBytes) throws IOException
+    {
+        final long sampleNanos = 60000000000L;
+        long periodNanos = (fps > 0.0) ? (long)(1000000000.0 / fps) : 0;
+        long startTime = System.nanoTime();
+        long endTime = startTime + (long)(minutes * sampleNanos);
+        long nextSample = startTime + sampleNanos;
+        long frameNumber = 0;
+
+        // The baseline is taken after the first minute, once every image size and the contour
+        // storage's high water mark have been seen, earlier growth is the pool filling up
+        long baseImageBytes = -1, baseStorageBytes = 0, baseProcessBytes = 0;
+        boolean passed = true;
+        System.err.println("minute,frames,images,image_mb,pooled,storage_kb,process_native_mb");
+        while (System.nanoTime() < endTime)
+        {
+            ReplayFrames replay = new ReplayFrames(frames, recordings);
+            while (replay.next())
+            {
+                if (periodNanos > 0)
+                {
+                    long wait = startTime + frameNumber * periodNanos - System.nanoTime();
+                    if (wait > 0)
+                    {
+                        sleepNanos(wait);
+                    }
+                }
+                widget.processImage(replay.work);
+                frameNumber++;
+            }
+
+            long now = System.nanoTime();
+            if (now < nextSample && now < endTime)
+            {
+                continue;
+            }
+            nextSample += sampleNanos;
+
+            long processBytes = processNativeBytes();
+            long imageBytes = DaisyExtensions.getLiveImageBytes();
+            long storageBytes = DaisyExtensions.getStorageBytes();
+            System.err.format("%.1f,%d,%d,%.1f,%d,%.1f,%.1f%n", (now - startTime) / (double) sampleNanos, frameNumber,
+                    DaisyExtensions.getLiveImageCount(), imageBytes / 1048576.0, DaisyExtensions.getPooledImageCount(),
+                    storageBytes / 1024.0, processBytes / 1048576.0);
+            if (baseImageBytes < 0)
+            {
+                baseImageBytes = imageBytes;
+                baseStorageBytes = storageBytes;
+                baseProcessBytes = processBytes;
+                DaisyExtensions.setLeakTracking(true); // Only images acquired from here on are reported
+                continue;
+            }
+            if (imageBytes > baseImageBytes || storageBytes > baseStorageBytes
+                    || (processBytes >= 0 && processBytes - baseProcessBytes > toleranceBytes))
+            {
+                passed = false;
+            }
+        }
+
+        if (passed)
+        {
+            System.err.println("Native memory didn't grow");
+        }
+        else
+        {
+            System.err.println("Native memory grew, images acquired since the first minute and not released:");
+            DaisyExtensions.reportLeaks(System.err);
+        }
+        DaisyExtensions.setLeakTracking(false);
+        return passed;
+    }
+
+    /*
+     * The process' committed memory outside the Java heap (native images, JPEG decoding, thread
+     * stacks...), after a collection so images only the finalizers free are gone. -1 where the JVM
+     * doesn't tell.
+     */
+    private static long processNativeBytes()
+    {
+        System.gc();
+        System.runFinalization();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof com.sun.management.OperatingSystemMXBean))
+        {
+            return -1;
+        }
+        long committed = ((com.sun.management.OperatingSystemMXBean) os).getCommittedVirtualMemorySize();
+        return committed - Runtime.getRuntime().totalMemory();
+    }
+
+    /*
+     * One pass over the sample frames, then over the frames of the recordings. The sample frames
+     * are restored before they are handed out, the recorded ones are decoded one at a time and
+     * disposed when the next one is asked for.
+     */
+    private static class ReplayFrames
+    {
+        private final List<SampleFrame> frames;
+        private final List<File> recordings;
+        private int index = 0; // Into frames, then into recordings
+        private RecordingFrameSource source = null; // The recording being replayed
+        WPIColorImage work;
+        String name;
+        double[] recordedResult; // Null for sample frames
+
+        ReplayFrames(List<SampleFrame> frames, List<File> recordings)
+        {
+            this.frames = frames;
+            this.recordings = recordings;
+        }
+
+        /* Moves on to the next frame, returns false after the last one */
+        boolean next() throws IOException
+        {
+            if (source != null)
+            {
+                work.dispose();
+                if (this.nextRecorded())
+                {
+                    return true;
+                }
+            }
+            if (index < frames.size())
+            {
+                SampleFrame frame = frames.get(index++);
+                frame.restore();
+                work = frame.work;
+                name = frame.file.getPath();
+                recordedResult = null;
+                return true;
+            }
+            while (index < frames.size() + recordings.size())
+            {
+                source = new RecordingFrameSource(recordings.get(index++ - frames.size()), 1);
+                if (this.nextRecorded())
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean nextRecorded() throws IOException
+        {
+            work = source.next();
+            if (work == null)
+            {
+                source.close();
+                source = null;
+                return false;
+            }
+            name = source.getFrameName();
+            recordedResult = source.getRecordedResult();
+            return true;
+        }
+    }
+
+    private static void sleepNanos(long nanos)
+    {
+        try
+        {
+            Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_core.IplROI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Connected component labeling of a binary image in plain Java, as a faster
+ * alternative to cvFindContours + cvConvexHull2 + approxPolygon when all that
+ * is needed of a blob is its bounding box, area and extreme points.
+ *
+ * The image is read once, row by row, and split into runs of set pixels. Runs
+ * that touch a run in the row above (8-connected) are merged with union-find,
+ * and the statistics are accumulated per run as it is found, so no per-pixel
+ * label image is needed. All buffers are plain int arrays that are kept
+ * between calls and only grow.
+ *
+ * The extreme points are the corners of a rectangle seen roughly head on:
+ * top left has the smallest x+y, bottom right the largest x+y, top right the
+ * largest x-y and bottom left the smallest x-y.
+ *
+ * @author sebastian
+ */
+class BlobLabeler
+{
+    private static final int kInitialLabels = 1024;
+
+    private byte[] row = new byte[0];
+
+    // Runs in the row above and in the current row
+    private int[] prevStart = new int[0], prevEnd = new int[0], prevLabel = new int[0];
+    private int[] curStart = new int[0], curEnd = new int[0], curLabel = new int[0];
+    private int prevCount, curCount;
+
+    // Union-find parent and statistics per label. Once labeling is done the
+    // blobs are compacted to the front, from blobStart on.
+    private int[] parent = new int[kInitialLabels];
+    private int[] minX = new int[kInitialLabels], maxX = new int[kInitialLabels];
+    private int[] minY = new int[kInitialLabels], maxY = new int[kInitialLabels];
+    private int[] area = new int[kInitialLabels];
+    private int[] tlX = new int[kInitialLabels], tlY = new int[kInitialLabels];
+    private int[] trX = new int[kInitialLabels], trY = new int[kInitialLabels];
+    private int[] brX = new int[kInitialLabels], brY = new int[kInitialLabels];
+    private int[] blX = new int[kInitialLabels], blY = new int[kInitialLabels];
+    private int labels = 0; // Labels in use, including the finished blobs
+    private int blobStart = 0; // Blobs from earlier label() calls since the last clear()
+
+    /* Forgets all blobs */
+    void clear()
+    {
+        labels = 0;
+        blobStart = 0;
+    }
+
+    /*
+     * Labels the non-zero pixels of bin (8 bit, 1 channel) and adds its blobs to the
+     * ones already found. If bin has a region of interest only that part is labeled,
+     * blob coordinates are always in full image coordinates.
+     */
+    void label(IplImage bin)
+    {
+        int width = bin.width();
+        int height = bin.height();
+        int offsetX = 0, offsetY = 0;
+        IplROI roi = bin.roi();
+        if (roi != null && !roi.isNull())
+        {
+            width = roi.width();
+            height = roi.height();
+            offsetX = roi.xOffset();
+            offsetY = roi.yOffset();
+        }
+
+        int maxRuns = width / 2 + 1;
+        if (row.length < width)
+        {
+            row = new byte[width];
+        }
+        if (curStart.length < maxRuns)
+        {
+            prevStart = new int[maxRuns];
+            prevEnd = new int[maxRuns];
+            prevLabel = new int[maxRuns];
+            curStart = new int[maxRuns];
+            curEnd = new int[maxRuns];
+            curLabel = new int[maxRuns];
+        }
+
+        ByteBuffer data = bin.getByteBuffer();
+        int step = bin.widthStep();
+        int firstLabel = labels;
+        prevCount = 0;
+
+        for (int y = 0; y < height; y++)
+        {
+            data.position((offsetY + y) * step + offsetX);
+            data.get(row, 0, width);
+            int imageY = offsetY + y;
+
+            curCount = 0;
+            int j = 0; // First run above that can still touch a run in this row
+            int x = 0;
+            while (x < width)
+            {
+                if (row[x] == 0)
+                {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && row[x] != 0)
+                {
+                    x++;
+                }
+                int end = x - 1;
+
+                // Merge with every run above that touches this one, diagonals included
+                while (j < prevCount && prevEnd[j] < start - 1)
+                {
+                    j++;
+                }
+                int runLabel = -1;
+                for (int k = j; k < prevCount && prevStart[k] <= end + 1; k++)
+                {
+                    if (runLabel < 0)
+                    {
+                        runLabel = prevLabel[k];
+                    }
+                    else
+                    {
+                        union(runLabel, prevLabel[k]);
+                    }
+                }
+                if (runLabel < 0)
+                {
+                    runLabel = newLabel();
+                }
+
+                addRun(runLabel, offsetX + start, offsetX + end, imageY);
+                curStart[curCount] = start;
+                curEnd[curCount] = end;
+                curLabel[curCount] = runLabel;
+                curCount++;
+            }
+
+            // The current row becomes the row above
+            int[] swap = prevStart; prevStart = curStart; curStart = swap;
+            swap = prevEnd; prevEnd = curEnd; curEnd = swap;
+            swap = prevLabel; prevLabel = curLabel; curLabel = swap;
+            prevCount = curCount;
+        }
+
+        // Fold the statistics of every label into the root of its blob
+        for (int l = firstLabel; l < labels; l++)
+        {
+            int r = find(l);
+            if (r != l)
+            {
+                merge(r, l);
+            }
+        }
+
+        // Move the roots to the front, after the blobs of earlier calls. Roots are
+        // always the smallest label of their blob, so this never overwrites one.
+        int count = blobStart;
+        for (int l = firstLabel; l < labels; l++)
+        {
+            if (parent[l] == l)
+            {
+                move(l, count++);
+            }
+        }
+        labels = count;
+        blobStart = count;
+    }
+
+    int getCount()
+    {
+        return blobStart;
+    }
+
+    int getX(int blob)
+    {
+        return minX[blob];
+    }
+
+    int getY(int blob)
+    {
+        return minY[blob];
+    }
+
+    int getWidth(int blob)
+    {
+        return maxX[blob] - minX[blob] + 1;
+    }
+
+    int getHeight(int blob)
+    {
+        return maxY[blob] - minY[blob] + 1;
+    }
+
+    /* Number of pixels in the blob */
+    int getArea(int blob)
+    {
+        return area[blob];
+    }
+
+    /* Extreme points, clockwise from the top left: 0 top left, 1 top right, 2 bottom right, 3 bottom left */
+    int getCornerX(int blob, int corner)
+    {
+        switch (corner)
+        {
+            case 0: return tlX[blob];
+            case 1: return trX[blob];
+            case 2: return brX[blob];
+            default: return blX[blob];
+        }
+    }
+
+    int getCornerY(int blob, int corner)
+    {
+        switch (corner)
+        {
+            case 0: return tlY[blob];
+            case 1: return trY[blob];
+            case 2: return brY[blob];
+            default: return blY[blob];
+        }
+    }
+
+    private int newLabel()
+    {
+        if (labels == parent.length)
+        {
+            grow(labels * 2);
+        }
+        int l = labels++;
+        parent[l] = l;
+        minX[l] = Integer.MAX_VALUE;
+        maxX[l] = Integer.MIN_VALUE;
+        minY[l] = Integer.MAX_VALUE;
+        maxY[l] = Integer.MIN_VALUE;
+        area[l] = 0;
+        // Corners start out so far away that the first run replaces all of them
+        tlX[l] = blX[l] = Integer.MAX_VALUE / 2;
+        trX[l] = brX[l] = Integer.MIN_VALUE / 2;
+        tlY[l] = trY[l] = brY[l] = blY[l] = 0;
+        return l;
+    }
+
+    private void addRun(int l, int start, int end, int y)
+    {
+        if (start < minX[l]) minX[l] = start;
+        if (end > maxX[l]) maxX[l] = end;
+        if (y < minY[l]) minY[l] = y;
+        if (y > maxY[l]) maxY[l] = y;
+        area[l] += end - start + 1;
+        // Only the ends of a run can be extreme points
+        if (start + y < tlX[l] + tlY[l]) { tlX[l] = start; tlY[l] = y; }
+        if (end - y > trX[l] - trY[l]) { trX[l] = end; trY[l] = y; }
+        if (end + y > brX[l] + brY[l]) { brX[l] = end; brY[l] = y; }
+        if (start - y < blX[l] - blY[l]) { blX[l] = start; blY[l] = y; }
+    }
+
+    /* Adds the statistics of label from to label to */
+    private void merge(int to, int from)
+    {
+        if (minX[from] < minX[to]) minX[to] = minX[from];
+        if (maxX[from] > maxX[to]) maxX[to] = maxX[from];
+        if (minY[from] < minY[to]) minY[to] = minY[from];
+        if (maxY[from] > maxY[to]) maxY[to] = maxY[from];
+        area[to] += area[from];
+        if (tlX[from] + tlY[from] < tlX[to] + tlY[to]) { tlX[to] = tlX[from]; tlY[to] = tlY[from]; }
+        if (trX[from] - trY[from] > trX[to] - trY[to]) { trX[to] = trX[from]; trY[to] = trY[from]; }
+        if (brX[from] + brY[from] > brX[to] + brY[to]) { brX[to] = brX[from]; brY[to] = brY[from]; }
+        if (blX[from] - blY[from] < blX[to] - blY[to]) { blX[to] = blX[from]; blY[to] = blY[from]; }
+    }
+
+    private void move(int from, int to)
+    {
+        if (from == to)
+        {
+            return;
+        }
+        parent[to] = to;
+        minX[to] = minX[from];
+        maxX[to] = maxX[from];
+        minY[to] = minY[from];
+        maxY[to] = maxY[from];
+        area[to] = area[from];
+        tlX[to] = tlX[from]; tlY[to] = tlY[from];
+        trX[to] = trX[from]; trY[to] = trY[from];
+        brX[to] = brX[from]; brY[to] = brY[from];
+        blX[to] = blX[from]; blY[to] = blY[from];
+    }
+
+    private int find(int l)
+    {
+        while (parent[l] != l)
+        {
+            parent[l] = parent[parent[l]]; // Path halving
+            l = parent[l];
+        }
+        return l;
+    }
+
+    /* The smaller label becomes the root */
+    private void union(int a, int b)
+    {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra < rb)
+        {
+            parent[rb] = ra;
+        }
+        else if (rb < ra)
+        {
+            parent[ra] = rb;
+        }
+    }
+
+    private void grow(int capacity)
+    {
+        parent = Arrays.copyOf(parent, capacity);
+        minX = Arrays.copyOf(minX, capacity);
+        maxX = Arrays.copyOf(maxX, capacity);
+        minY = Arrays.copyOf(minY, capacity);
+        maxY = Arrays.copyOf(maxY, capacity);
+        area = Arrays.copyOf(area, capacity);
+        tlX = Arrays.copyOf(tlX, capacity);
+        tlY = Arrays.copyOf(tlY, capacity);
+        trX = Arrays.copyOf(trX, capacity);
+        trY = Arrays.copyOf(trY, capacity);
+        brX = Arrays.copyOf(brX, capacity);
+        brY = Arrays.copyOf(brY, capacity);
+        blX = Arrays.copyOf(blX, capacity);
+        blY = Arrays.copyOf(blY, capacity);
+    }
+}
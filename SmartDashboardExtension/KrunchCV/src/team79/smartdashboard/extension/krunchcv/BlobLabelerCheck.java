@@ -0,0 +1,275 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks BlobLabeler against a plain flood fill (8-connected, one pixel at a
+ * time) on generated binary images. Every blob has to have the same bounding
+ * box and area, in the same order, and its extreme points have to be set
+ * pixels of the blob with the flood fill's smallest and largest x+y and x-y.
+ *
+ * Usage: BlobLabelerCheck [options]
+ *   -seed <n>          seed of the random images (default 79)
+ *   -images <n>        random images to label (default 500)
+ *
+ * Besides random noise of several densities, with and without a region of
+ * interest, the images cover runs that only touch diagonally, blobs that
+ * start out separate and merge rows later (a comb joined at the bottom),
+ * more labels than BlobLabeler starts out with (so its arrays have to grow)
+ * and several regions labeled one after the other without a clear, like the
+ * fine level of coarse to fine detection does. Exits with 1 if any blob
+ * differs.
+ *
+ * @author sebastian
+ */
+public class BlobLabelerCheck
+{
+    // Indices into a reference blob
+    private static final int MIN_X = 0, MIN_Y = 1, MAX_X = 2, MAX_Y = 3, AREA = 4;
+    private static final int MIN_SUM = 5, MAX_DIFFERENCE = 6, MAX_SUM = 7, MIN_DIFFERENCE = 8; // x+y and x-y
+
+    private static int checkedBlobs = 0;
+
+    public static void main(String[] args)
+    {
+        long seed = 79;
+        int images = 500;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-seed") && i + 1 < args.length)
+            {
+                seed = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-images") && i + 1 < args.length)
+            {
+                images = Integer.parseInt(args[++i]);
+            }
+            else
+            {
+                System.out.println("Usage: BlobLabelerCheck [-seed n] [-images n]");
+                return;
+            }
+        }
+
+        int mismatches = check(new Random(seed), images);
+        System.err.format("%d blobs checked, %d differ from the flood fill%n", checkedBlobs, mismatches);
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+    static int check(Random random, int images)
+    {
+        BlobLabeler labeler = new BlobLabeler();
+        int mismatches = 0;
+
+        // Random noise, half of it labeled through a region of interest
+        double[] densities = {0.05, 0.2, 0.4, 0.6};
+        for (int n = 0; n < images; n++)
+        {
+            int width = 1 + random.nextInt(320);
+            int height = 1 + random.nextInt(240);
+            byte[] pixels = new byte[width * height];
+            double density = densities[n % densities.length];
+            for (int i = 0; i < pixels.length; i++)
+            {
+                pixels[i] = (random.nextDouble() < density) ? (byte) 255 : 0;
+            }
+            int[] region = {0, 0, width, height};
+            if (n % 2 == 1)
+            {
+                region[0] = random.nextInt(width);
+                region[1] = random.nextInt(height);
+                region[2] = 1 + random.nextInt(width - region[0]);
+                region[3] = 1 + random.nextInt(height - region[1]);
+            }
+            mismatches += check("noise " + n, labeler, pixels, width, height, new int[][] {region}, -1);
+        }
+
+        // A diagonal line each way and a checkerboard, each one blob held together by corners only
+        int size = 64;
+        byte[] diagonal = new byte[size * size];
+        byte[] antiDiagonal = new byte[size * size];
+        byte[] checkerboard = new byte[size * size];
+        for (int y = 0; y < size; y++)
+        {
+            diagonal[y * size + y] = (byte) 255;
+            antiDiagonal[y * size + (size - 1 - y)] = (byte) 255;
+            for (int x = (y % 2); x < size; x += 2)
+            {
+                checkerboard[y * size + x] = (byte) 255;
+            }
+        }
+        int[][] whole = {{0, 0, size, size}};
+        mismatches += check("diagonal", labeler, diagonal, size, size, whole, 1);
+        mismatches += check("anti-diagonal", labeler, antiDiagonal, size, size, whole, 1);
+        mismatches += check("checkerboard", labeler, checkerboard, size, size, whole, 1);
+        mismatches += check("checkerboard region", labeler, checkerboard, size, size,
+                new int[][] {{5, 7, 31, 20}}, 1);
+
+        // A comb: 2050 teeth get a label each, the last row (touching them only diagonally) joins them
+        int width = 4100, height = 16;
+        byte[] comb = new byte[width * height];
+        for (int y = 0; y < height - 1; y++)
+        {
+            for (int x = 0; x < width; x += 2)
+            {
+                comb[y * width + x] = (byte) 255;
+            }
+        }
+        for (int x = 1; x < width; x += 2)
+        {
+            comb[(height - 1) * width + x] = (byte) 255;
+        }
+        mismatches += check("comb", labeler, comb, width, height, new int[][] {{0, 0, width, height}}, 1);
+
+        // Single pixels on a grid, 76800 blobs that stay separate
+        width = 640;
+        height = 480;
+        byte[] dots = new byte[width * height];
+        for (int y = 0; y < height; y += 2)
+        {
+            for (int x = 0; x < width; x += 2)
+            {
+                dots[y * width + x] = (byte) 255;
+            }
+        }
+        mismatches += check("dots", labeler, dots, width, height, new int[][] {{0, 0, width, height}},
+                (width / 2) * (height / 2));
+
+        // Separate regions of one image, the blobs of each are added to the ones before
+        byte[] noise = new byte[width * height];
+        for (int i = 0; i < noise.length; i++)
+        {
+            noise[i] = (random.nextDouble() < 0.3) ? (byte) 255 : 0;
+        }
+        mismatches += check("regions", labeler, noise, width, height,
+                new int[][] {{0, 0, 200, 100}, {300, 50, 100, 300}, {10, 400, 600, 80}}, -1);
+
+        return mismatches;
+    }
+
+    /*
+     * Labels the regions of the image one after the other and compares the blobs to the flood fill's.
+     * expectedCount is the number of blobs there have to be, -1 for any. Returns the number of
+     * differences.
+     */
+    private static int check(String name, BlobLabeler labeler, byte[] pixels, int width, int height, int[][] regions,
+            int expectedCount)
+    {
+        List<int[]> expected = new ArrayList<int[]>();
+        IplImage bin = DaisyExtensions.acquireImage(width, height, 8, 1);
+        try
+        {
+            ByteBuffer data = bin.getByteBuffer();
+            for (int y = 0; y < height; y++)
+            {
+                data.position(y * bin.widthStep());
+                data.put(pixels, y * width, width);
+            }
+
+            labeler.clear();
+            for (int[] region : regions)
+            {
+                opencv_core.cvSetImageROI(bin, opencv_core.cvRect(region[0], region[1], region[2], region[3]));
+                labeler.label(bin);
+                opencv_core.cvResetImageROI(bin);
+                floodFill(pixels, width, region, expected);
+            }
+        }
+        finally
+        {
+            DaisyExtensions.releaseImage(bin);
+        }
+
+        if (labeler.getCount() != expected.size() || (expectedCount >= 0 && expected.size() != expectedCount))
+        {
+            System.err.println(name + ": " + labeler.getCount() + " blobs, the flood fill found " + expected.size()
+                    + ((expectedCount >= 0) ? " and there are " + expectedCount : ""));
+            return 1;
+        }
+
+        int mismatches = 0;
+        for (int blob = 0; blob < expected.size(); blob++)
+        {
+            int[] e = expected.get(blob);
+            boolean same = labeler.getX(blob) == e[MIN_X] && labeler.getY(blob) == e[MIN_Y]
+                    && labeler.getWidth(blob) == e[MAX_X] - e[MIN_X] + 1
+                    && labeler.getHeight(blob) == e[MAX_Y] - e[MIN_Y] + 1
+                    && labeler.getArea(blob) == e[AREA];
+            int[] scores = {e[MIN_SUM], e[MAX_DIFFERENCE], e[MAX_SUM], e[MIN_DIFFERENCE]};
+            for (int corner = 0; corner < 4; corner++)
+            {
+                int x = labeler.getCornerX(blob, corner);
+                int y = labeler.getCornerY(blob, corner);
+                int score = (corner % 2 == 0) ? x + y : x - y;
+                same &= score == scores[corner] && x >= e[MIN_X] && x <= e[MAX_X] && y >= e[MIN_Y] && y <= e[MAX_Y]
+                        && pixels[y * width + x] != 0;
+            }
+            if (!same)
+            {
+                mismatches++;
+                System.err.format("%s: blob %d is %d,%d %dx%d area %d, the flood fill's %d,%d %dx%d area %d%n",
+                        name, blob, labeler.getX(blob), labeler.getY(blob), labeler.getWidth(blob),
+                        labeler.getHeight(blob), labeler.getArea(blob), e[MIN_X], e[MIN_Y], e[MAX_X] - e[MIN_X] + 1,
+                        e[MAX_Y] - e[MIN_Y] + 1, e[AREA]);
+            }
+        }
+        checkedBlobs += expected.size();
+        return mismatches;
+    }
+
+    /* Adds the blobs inside region (x, y, width, height) to blobs, in the order of their first pixel */
+    private static void floodFill(byte[] pixels, int width, int[] region, List<int[]> blobs)
+    {
+        boolean[] seen = new boolean[pixels.length];
+        int[] stack = new int[region[2] * region[3]];
+        for (int y = region[1]; y < region[1] + region[3]; y++)
+        {
+            for (int x = region[0]; x < region[0] + region[2]; x++)
+            {
+                if (pixels[y * width + x] == 0 || seen[y * width + x])
+                {
+                    continue;
+                }
+                int[] blob = {x, y, x, y, 0, x + y, x - y, x + y, x - y};
+                int top = 0;
+                stack[top++] = y * width + x;
+                seen[y * width + x] = true;
+                while (top > 0)
+                {
+                    int p = stack[--top];
+                    int px = p % width, py = p / width;
+                    blob[MIN_X] = Math.min(blob[MIN_X], px);
+                    blob[MIN_Y] = Math.min(blob[MIN_Y], py);
+                    blob[MAX_X] = Math.max(blob[MAX_X], px);
+                    blob[MAX_Y] = Math.max(blob[MAX_Y], py);
+                    blob[AREA]++;
+                    blob[MIN_SUM] = Math.min(blob[MIN_SUM], px + py);
+                    blob[MAX_DIFFERENCE] = Math.max(blob[MAX_DIFFERENCE], px - py);
+                    blob[MAX_SUM] = Math.max(blob[MAX_SUM], px + py);
+                    blob[MIN_DIFFERENCE] = Math.min(blob[MIN_DIFFERENCE], px - py);
+                    for (int ny = Math.max(region[1], py - 1); ny <= Math.min(region[1] + region[3] - 1, py + 1); ny++)
+                    {
+                        for (int nx = Math.max(region[0], px - 1); nx <= Math.min(region[0] + region[2] - 1, px + 1);
+                                nx++)
+                        {
+                            int q = ny * width + nx;
+                            if (pixels[q] != 0 && !seen[q])
+                            {
+                                seen[q] = true;
+                                stack[top++] = q;
+                            }
+                        }
+                    }
+                }
+                blobs.add(blob);
+            }
+        }
+    }
+}
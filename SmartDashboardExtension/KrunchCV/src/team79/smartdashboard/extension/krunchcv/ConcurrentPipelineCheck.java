@@ -0,0 +1,206 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that several widgets can process frames at the same time, each on a
+ * thread of its own like one per camera would, without getting in each
+ * other's way. The sample images are first run through one widget on one
+ * thread, then through a widget per thread, all at once, and every result of
+ * every thread has to match the single threaded one exactly.
+ *
+ * Usage: ConcurrentPipelineCheck [options] <image dir or file>...
+ *   -settings <file>   settings file to load (default KrunchCVSettings.txt)
+ *   -threads <n>       widgets running at the same time (default the number of processors)
+ *   -passes <n>        passes of each thread over the images (default 5)
+ *   -mixed             every other widget looks for the pyramid goal, like a shooter and a climber camera
+ *
+ * Exits with 1 if any result differs. Region of interest tracking is turned
+ * off, since it carries state from frame to frame, and only the raw result
+ * of each frame (not the filtered one) is compared.
+ *
+ * @author sebastian
+ */
+public class ConcurrentPipelineCheck
+{
+    public static void main(String[] args)
+    {
+        String settingsFilename = KrunchCVWidget.DEFAULT_CSV_FILENAME;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int passes = 5;
+        boolean mixed = false;
+        List<File> roots = new ArrayList<File>();
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-settings") && i + 1 < args.length)
+            {
+                settingsFilename = args[++i];
+            }
+            else if (args[i].equals("-threads") && i + 1 < args.length)
+            {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-passes") && i + 1 < args.length)
+            {
+                passes = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-mixed"))
+            {
+                mixed = true;
+            }
+            else
+            {
+                roots.add(new File(args[i]));
+            }
+        }
+
+        if (roots.isEmpty())
+        {
+            System.out.println("Usage: ConcurrentPipelineCheck [-settings file] [-threads n] [-passes n] [-mixed] "
+                    + "<image dir or file>...");
+            return;
+        }
+
+        boolean passed = false;
+        try
+        {
+            passed = check(settingsFilename, roots, threads, passes, mixed);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    static boolean check(final String settingsFilename, final List<File> roots, int threads, final int passes,
+            boolean mixed) throws IOException, InterruptedException
+    {
+        // The single threaded results, for each setup in use
+        List<SampleFrame> frames = load(roots);
+        if (frames.isEmpty())
+        {
+            System.err.println("No images found");
+            return false;
+        }
+        long startTime = System.nanoTime();
+        final double[][] rectangular = run(createWidget(settingsFilename, false), frames);
+        final double[][] pyramid = mixed ? run(createWidget(settingsFilename, true), frames) : null;
+        double singleSeconds = (System.nanoTime() - startTime) / 1000000000.0 / (mixed ? 2 : 1);
+
+        // Each thread gets its own widget and frames, and they all start at once
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger mismatches = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final boolean pyramidGoals = mixed && (t % 2 == 1);
+            final String name = "KrunchCV check " + t + (pyramidGoals ? " (pyramid)" : "");
+            workers[t] = new Thread(name) {
+                @Override
+                public void run() {
+                    try
+                    {
+                        KrunchCVWidget widget = createWidget(settingsFilename, pyramidGoals);
+                        List<SampleFrame> ownFrames = load(roots);
+                        ready.countDown();
+                        start.await();
+                        for (int pass = 0; pass < passes; pass++)
+                        {
+                            double[][] results = ConcurrentPipelineCheck.run(widget, ownFrames);
+                            mismatches.addAndGet(compare(name, pass, ownFrames, pyramidGoals ? pyramid : rectangular,
+                                    results));
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        failures.incrementAndGet();
+                        ready.countDown();
+                        e.printStackTrace();
+                    }
+                }
+            };
+            workers[t].setDaemon(true);
+            workers[t].start();
+        }
+
+        ready.await();
+        startTime = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers)
+        {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+
+        long frameCount = (long) threads * passes * frames.size();
+        System.err.format("%d threads, %d frames in %.2f seconds (%.2f frames per second, %.2f on one thread)%n",
+                threads, frameCount, seconds, frameCount / seconds, frames.size() / singleSeconds);
+        System.err.format("%d results differ from the single threaded run, %d threads failed%n",
+                mismatches.get(), failures.get());
+        return mismatches.get() == 0 && failures.get() == 0;
+    }
+
+    private static KrunchCVWidget createWidget(String settingsFilename, boolean pyramidGoals)
+    {
+        KrunchCVWidget widget = KrunchCVWidget.createOffline(settingsFilename, new LocalTable(), new LocalTable());
+        widget.PYRAMID_GOALS_PROPERTY.setValue(pyramidGoals);
+        widget.ROI_TRACKING_PROPERTY.setValue(false);
+        return widget;
+    }
+
+    private static List<SampleFrame> load(List<File> roots) throws IOException
+    {
+        List<SampleFrame> frames = new ArrayList<SampleFrame>();
+        for (File root : roots)
+        {
+            frames.addAll(SampleFrame.loadTree(root));
+        }
+        return frames;
+    }
+
+    /* One pass over the frames, returns the result of each */
+    private static double[][] run(KrunchCVWidget widget, List<SampleFrame> frames)
+    {
+        double[][] results = new double[frames.size()][];
+        for (int i = 0; i < frames.size(); i++)
+        {
+            SampleFrame frame = frames.get(i);
+            frame.restore();
+            widget.processImage(frame.work);
+            results[i] = new double[] {widget.isTargetFound() ? 1.0 : 0.0, widget.getTargetAzimuth(),
+                widget.getTargetRange(), widget.getTargetX(), widget.getTargetY(), widget.getTargetWidth(),
+                widget.getTargetHeight()};
+        }
+        return results;
+    }
+
+    /* Prints the frames whose result differs from the expected one, returns how many */
+    private static int compare(String name, int pass, List<SampleFrame> frames, double[][] expected, double[][] results)
+    {
+        int count = 0;
+        for (int i = 0; i < results.length; i++)
+        {
+            if (!Arrays.equals(expected[i], results[i]))
+            {
+                count++;
+                System.err.println(name + " pass " + pass + " " + frames.get(i).file.getPath() + ": expected "
+                        + Arrays.toString(expected[i]) + ", got " + Arrays.toString(results[i]));
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,180 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the filled in (9 iteration close) and the hollow target (contour
+ * hierarchy) detection side by side on the Angle Tests and Distance+Resolution
+ * Tests sample images, and writes one CSV row per image with the result and the
+ * median stage times of both.
+ *
+ * The sample images have no marked up targets, so this measures agreement
+ * between the two, not accuracy: whether both find a target, and how far apart
+ * their azimuth and range are when they do. A difference doesn't say which one
+ * is wrong (HsvAutoTuner's annotation files have the marked up targets).
+ *
+ * @author sebastian
+ */
+public class DetectionComparison
+{
+    private static final String[] SAMPLE_DIRS = {"Angle Tests", "Distance+Resolution Tests"};
+    private static final int DEFAULT_ITERATIONS = 50;
+    private static final int[] TIMED_STAGES = {KrunchCVWidget.STAGE_CLOSE, KrunchCVWidget.STAGE_CONTOURS,
+        KrunchCVWidget.STAGE_TOTAL};
+
+    /* Result and median stage times of one detection on one image */
+    private static class Run
+    {
+        boolean found;
+        double azimuth, range;
+        final long[] medianNanos = new long[TIMED_STAGES.length];
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: DetectionComparison <Sample Images dir> <settings file> [iterations] [output csv]");
+            return;
+        }
+
+        int iterations = (args.length > 2) ? Math.max(1, Integer.parseInt(args[2])) : DEFAULT_ITERATIONS;
+
+        try
+        {
+            List<SampleFrame> frames = new ArrayList<SampleFrame>();
+            for (String dir : SAMPLE_DIRS)
+            {
+                frames.addAll(SampleFrame.loadTree(new File(args[0], dir)));
+            }
+            if (frames.isEmpty())
+            {
+                System.err.println("No images found");
+                return;
+            }
+
+            Writer out = (args.length > 3) ? new FileWriter(args[3]) : new PrintWriter(System.out);
+            PrintWriter csv = new PrintWriter(out);
+            KrunchCVWidget filled = KrunchCVWidget.createOffline(args[1], new LocalTable(), new LocalTable());
+            KrunchCVWidget hollow = KrunchCVWidget.createOffline(args[1], new LocalTable(), new LocalTable());
+            hollow.HOLLOW_TARGETS_PROPERTY.setValue(true);
+            compare(filled, hollow, frames, iterations, csv);
+            out.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    static void compare(KrunchCVWidget filled, KrunchCVWidget hollow, List<SampleFrame> frames, int iterations,
+            PrintWriter csv)
+    {
+        csv.print("file,width,height,filled_found,filled_azimuth,filled_range,hollow_found,hollow_azimuth,hollow_range");
+        for (String mode : new String[] {"filled", "hollow"})
+        {
+            for (int stage : TIMED_STAGES)
+            {
+                csv.print("," + mode + "_" + KrunchCVWidget.STAGE_NAMES[stage] + "_us");
+            }
+        }
+        csv.println();
+
+        int bothFound = 0, filledOnly = 0, hollowOnly = 0;
+        double azimuthDifferenceSum = 0.0, maxAzimuthDifference = 0.0, rangeDifferenceSum = 0.0, maxRangeDifference = 0.0;
+        long[] filledTotals = new long[TIMED_STAGES.length];
+        long[] hollowTotals = new long[TIMED_STAGES.length];
+
+        for (SampleFrame frame : frames)
+        {
+            Run a = run(filled, frame, iterations);
+            Run b = run(hollow, frame, iterations);
+
+            csv.format("%s,%d,%d,%b,%.3f,%.3f,%b,%.3f,%.3f", frame.file.getPath(),
+                    frame.work.getWidth(), frame.work.getHeight(),
+                    a.found, a.azimuth, a.range, b.found, b.azimuth, b.range);
+            for (int i = 0; i < TIMED_STAGES.length; i++)
+            {
+                csv.format(",%.1f", a.medianNanos[i] / 1000.0);
+                filledTotals[i] += a.medianNanos[i];
+            }
+            for (int i = 0; i < TIMED_STAGES.length; i++)
+            {
+                csv.format(",%.1f", b.medianNanos[i] / 1000.0);
+                hollowTotals[i] += b.medianNanos[i];
+            }
+            csv.println();
+            csv.flush();
+
+            if (a.found && b.found)
+            {
+                bothFound++;
+                double azimuthDifference = Math.abs(a.azimuth - b.azimuth);
+                double rangeDifference = Math.abs(a.range - b.range);
+                azimuthDifferenceSum += azimuthDifference;
+                rangeDifferenceSum += rangeDifference;
+                maxAzimuthDifference = Math.max(maxAzimuthDifference, azimuthDifference);
+                maxRangeDifference = Math.max(maxRangeDifference, rangeDifference);
+            }
+            else if (a.found)
+            {
+                filledOnly++;
+            }
+            else if (b.found)
+            {
+                hollowOnly++;
+            }
+        }
+
+        System.err.format("%d images: %d found by both, %d by filled only, %d by hollow only%n",
+                frames.size(), bothFound, filledOnly, hollowOnly);
+        if (bothFound > 0)
+        {
+            System.err.format("azimuth difference mean %.3f max %.3f deg, range difference mean %.3f max %.3f in%n",
+                    azimuthDifferenceSum / bothFound, maxAzimuthDifference, rangeDifferenceSum / bothFound, maxRangeDifference);
+        }
+        for (int i = 0; i < TIMED_STAGES.length; i++)
+        {
+            System.err.format("%s: filled %.1f us, hollow %.1f us (mean of per image medians)%n",
+                    KrunchCVWidget.STAGE_NAMES[TIMED_STAGES[i]],
+                    filledTotals[i] / 1000.0 / frames.size(), hollowTotals[i] / 1000.0 / frames.size());
+        }
+    }
+
+    private static Run run(KrunchCVWidget widget, SampleFrame frame, int iterations)
+    {
+        Run result = new Run();
+        long[][] samples = new long[TIMED_STAGES.length][iterations];
+
+        // One untimed run so the widget has its images allocated for this resolution
+        frame.restore();
+        widget.processImage(frame.work);
+        for (int n = 0; n < iterations; n++)
+        {
+            frame.restore();
+            widget.processImage(frame.work);
+            for (int i = 0; i < TIMED_STAGES.length; i++)
+            {
+                samples[i][n] = widget.getStageNanos(TIMED_STAGES[i]);
+            }
+        }
+
+        result.found = widget.isTargetFound();
+        result.azimuth = widget.getTargetAzimuth();
+        result.range = widget.getTargetRange();
+        for (int i = 0; i < TIMED_STAGES.length; i++)
+        {
+            Arrays.sort(samples[i]);
+            result.medianNanos[i] = samples[i][iterations / 2];
+        }
+        return result;
+    }
+}
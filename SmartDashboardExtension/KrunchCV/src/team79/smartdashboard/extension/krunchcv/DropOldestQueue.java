@@ -0,0 +1,64 @@
+package team79.smartdashboard.extension.krunchcv;
+
+/**
+ * Bounded hand-off queue between two pipeline stages (one producer, one consumer).
+ * When the queue is full the oldest item is pushed out and handed back to the
+ * producer, so a slow consumer always gets the newest frames instead of working
+ * through a backlog of stale ones.
+ *
+ * @author sebastian
+ */
+class DropOldestQueue<T>
+{
+    private final Object[] items;
+    private int head = 0; // Index of the oldest item
+    private int count = 0;
+
+    DropOldestQueue(int capacity)
+    {
+        items = new Object[capacity];
+    }
+
+    /* Adds item, returns the item that had to be dropped to make room or null */
+    @SuppressWarnings("unchecked")
+    synchronized T offer(T item)
+    {
+        T evicted = null;
+        if (count == items.length)
+        {
+            evicted = (T) items[head];
+            items[head] = null;
+            head = (head + 1) % items.length;
+            count--;
+        }
+        items[(head + count) % items.length] = item;
+        count++;
+        notifyAll();
+        return evicted;
+    }
+
+    /* Removes the oldest item, or returns null if the queue is empty */
+    @SuppressWarnings("unchecked")
+    synchronized T poll()
+    {
+        if (count == 0)
+        {
+            return null;
+        }
+        T item = (T) items[head];
+        items[head] = null;
+        head = (head + 1) % items.length;
+        count--;
+        return item;
+    }
+
+    /* Waits for and removes the oldest item */
+    synchronized T take() throws InterruptedException
+    {
+        while (count == 0)
+        {
+            wait();
+        }
+        return poll();
+    }
+}
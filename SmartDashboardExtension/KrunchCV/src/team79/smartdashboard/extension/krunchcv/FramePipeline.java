@@ -0,0 +1,227 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs the stages of processImage on two worker threads so a frame can be
+ * thresholded while the previous one is being contoured:
+ *
+ *   camera thread: copy frame into a free slot, return the newest finished frame
+ *   mask thread:   HSV conversion, threshold, hole closing
+ *   detect thread: contours, goal detection, NetworkTables output, recording, overlay record
+ *
+ * Frames move between the threads through DropOldestQueues, so when a stage
+ * falls behind the stale frames are dropped instead of the newest one waiting.
+ * Every frame slot owns its images and they are allocated once, up front. The
+ * overlay is drawn on the camera thread, on frames that made it through.
+ *
+ * Every stage works on whole frames: ROI tracking and coarse to fine detection
+ * need the previous frame's result before the next frame is thresholded, which
+ * would serialize the stages again, so the widget ignores them (and says so)
+ * while pipelined.
+ *
+ * @author sebastian
+ */
+class FramePipeline
+{
+    private static final int kQueueCapacity = 1; // Frames waiting between two stages
+    // One waiting and one in progress for each stage, one finished and one being displayed
+    private static final int kFrameSlots = 2 * (kQueueCapacity + 1) + 2;
+
+    /* A frame slot and everything the stages need to process it */
+    static class Frame
+    {
+        final WPIColorImage image; // Copy of the camera frame, overlay is drawn on it
+        final Overlay overlay = new Overlay(); // What the detect thread found, to draw on image
+        boolean overlayDrawn;
+        final IplImage hsv;
+        final IplImage bin;
+        final long[] stageNanos = new long[KrunchCVWidget.STAGE_NAMES.length];
+        long captureTime;
+        long captureMillis; // Wall clock time, for the robot
+        long captureNanos; // When the camera captured the frame (captureTime is when it got to the pipeline)
+        long sequence;
+        double heading;
+
+        Frame(WPIColorImage template)
+        {
+            image = new WPIColorImage(template.getBufferedImage());
+            hsv = DaisyExtensions.acquireImage(image.getWidth(), image.getHeight(), 8, 3);
+            bin = DaisyExtensions.acquireImage(image.getWidth(), image.getHeight(), 8, 1);
+        }
+    }
+
+    private final KrunchCVWidget widget;
+    private final int width, height;
+    private final Frame[] frames = new Frame[kFrameSlots];
+    private final ConcurrentLinkedQueue<Frame> freeFrames = new ConcurrentLinkedQueue<Frame>();
+    private final DropOldestQueue<Frame> maskQueue = new DropOldestQueue<Frame>(kQueueCapacity);
+    private final DropOldestQueue<Frame> detectQueue = new DropOldestQueue<Frame>(kQueueCapacity);
+    private final DropOldestQueue<Frame> finishedQueue = new DropOldestQueue<Frame>(kQueueCapacity);
+    private final Thread maskThread, detectThread;
+    private Frame displayed = null; // Held by the camera thread until a newer frame finishes
+
+    FramePipeline(KrunchCVWidget widget, WPIColorImage template)
+    {
+        this.widget = widget;
+        width = template.getWidth();
+        height = template.getHeight();
+        for (int i = 0; i < kFrameSlots; i++)
+        {
+            frames[i] = new Frame(template);
+            freeFrames.add(frames[i]);
+        }
+
+        maskThread = new Thread("KrunchCV mask") {
+            @Override
+            public void run() {
+                runMaskStage();
+            }
+        };
+        detectThread = new Thread("KrunchCV detect") {
+            @Override
+            public void run() {
+                runDetectStage();
+            }
+        };
+        maskThread.setDaemon(true);
+        detectThread.setDaemon(true);
+        maskThread.start();
+        detectThread.start();
+    }
+
+    boolean matches(WPIColorImage rawImage)
+    {
+        return rawImage.getWidth() == width && rawImage.getHeight() == height;
+    }
+
+    /*
+     * Called from the camera thread. Hands rawImage to the pipeline and returns the
+     * newest frame that made it all the way through, which is the same frame as last
+     * time if no newer one finished since, or null if none finished yet. The returned
+     * frame stays valid until the next call.
+     */
+    Frame submit(WPIColorImage rawImage, double heading, long sequence, long captureMillis, long captureNanos)
+    {
+        Frame frame = freeFrames.poll();
+        if (frame != null) // Otherwise every slot is busy and this frame is skipped
+        {
+            frame.captureTime = System.nanoTime();
+            frame.captureMillis = captureMillis;
+            frame.captureNanos = captureNanos;
+            frame.sequence = sequence;
+            frame.heading = heading;
+            opencv_core.cvCopy(DaisyExtensions.getIplImage(rawImage), DaisyExtensions.getIplImage(frame.image));
+            recycle(maskQueue.offer(frame));
+        }
+
+        Frame finished = finishedQueue.poll();
+        if (finished != null)
+        {
+            recycle(displayed);
+            displayed = finished;
+            displayed.stageNanos[KrunchCVWidget.STAGE_TOTAL] = System.nanoTime() - displayed.captureTime;
+        }
+        return displayed;
+    }
+
+    /*
+     * Stops the threads and frees the slots, except for the image of the frame submit
+     * returned last, which may still be on screen. That one is returned (null if there
+     * is none) and the caller disposes it once it returned another image.
+     */
+    WPIColorImage shutdown()
+    {
+        maskThread.interrupt();
+        detectThread.interrupt();
+        try
+        {
+            maskThread.join();
+            detectThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null; // Workers may still be using the slots, leave them to the finalizers
+        }
+
+        for (Frame frame : frames)
+        {
+            if (frame != displayed)
+            {
+                frame.image.dispose();
+            }
+            DaisyExtensions.releaseImage(frame.hsv);
+            DaisyExtensions.releaseImage(frame.bin);
+        }
+        return (displayed != null) ? displayed.image : null;
+    }
+
+    private void recycle(Frame frame)
+    {
+        if (frame != null)
+        {
+            freeFrames.add(frame);
+        }
+    }
+
+    private void runMaskStage()
+    {
+        try
+        {
+            while (true)
+            {
+                Frame frame = maskQueue.take();
+                long stageStartTime = System.nanoTime();
+                widget.convertToHSV(DaisyExtensions.getIplImage(frame.image), frame.hsv);
+                stageStartTime = mark(frame, KrunchCVWidget.STAGE_HSV, stageStartTime);
+                widget.thresholdHSV(frame.hsv, frame.bin);
+                stageStartTime = mark(frame, KrunchCVWidget.STAGE_THRESHOLD, stageStartTime);
+                widget.closeHoles(frame.bin);
+                mark(frame, KrunchCVWidget.STAGE_CLOSE, stageStartTime);
+                recycle(detectQueue.offer(frame));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Pipeline shut down
+        }
+    }
+
+    private void runDetectStage()
+    {
+        try
+        {
+            while (true)
+            {
+                Frame frame = detectQueue.take();
+                long stageStartTime = System.nanoTime();
+                widget.findContours(frame.bin);
+                stageStartTime = mark(frame, KrunchCVWidget.STAGE_CONTOURS, stageStartTime);
+                widget.processForRectangularGoals(frame.heading);
+                widget.publishResult(frame.sequence, frame.captureMillis, System.nanoTime() - frame.captureNanos);
+                widget.recordFrame(DaisyExtensions.getIplImage(frame.image), frame.bin);
+                widget.captureOverlay(frame.overlay);
+                frame.overlayDrawn = false;
+                widget.releaseContourMemory();
+                mark(frame, KrunchCVWidget.STAGE_GOALS, stageStartTime);
+                recycle(finishedQueue.offer(frame));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Pipeline shut down
+        }
+    }
+
+    private static long mark(Frame frame, int stage, long startTime)
+    {
+        long now = System.nanoTime();
+        frame.stageNanos[stage] = now - startTime;
+        return now;
+    }
+}
@@ -0,0 +1,293 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records the camera frames, their binary masks and their results while the
+ * dashboard runs, so a match can be looked at and replayed afterwards (see
+ * RecordingFrameSource and BatchReplayRunner).
+ *
+ * The frame thread only copies the images and the result into a preallocated
+ * slot and queues it; a writer thread of its own appends the slots to
+ * memory-mapped segment files. When every slot is still waiting for the disk
+ * the frame is dropped, the frame thread never waits. The segment files of a
+ * run are a ring as big as the size limit: once it is full, the oldest file is
+ * mapped again and overwritten. Deleting it instead would fail on Windows for
+ * as long as its old mapping isn't garbage collected.
+ *
+ * Layout of a segment (all numbers big endian):
+ *
+ *   0  int   MAGIC
+ *   4  int   VERSION
+ *   8  int   number of records, only counts records that were written completely
+ *   12 int   index capacity
+ *   16       index, one entry per record: int offset, int length, long sequence
+ *            followed by the records, appended in order:
+ *            int width, int height, int raw widthStep, int mask widthStep,
+ *            int result length, the result (doubles, laid out like
+ *            TargetResultPublisher's array), the raw BGR image, the mask
+ *
+ * Segments are mapped at their full size up front, so the end of the last
+ * segment of a recording is unused. Since files are reused, their names don't
+ * tell the order the segments were written in, their first sequence number does
+ * (see RecordingFrameSource.sortSegments).
+ *
+ * @author sebastian
+ */
+class FrameRecorder
+{
+    static final int MAGIC = 0x4B524543; // "KREC"
+    static final int VERSION = 1;
+    static final String SEGMENT_EXTENSION = ".krec";
+    static final int HEADER_BYTES = 16;
+    static final int INDEX_ENTRY_BYTES = 16;
+
+    private static final int kSlots = 8; // Frames that can wait for the disk before frames are dropped
+    private static final int kSegmentBytes = 64 * 1024 * 1024;
+    private static final int kIndexCapacity = 1024; // Records per segment
+
+    /* A frame waiting to be written, owned by the frame thread until it is submitted */
+    static class Record
+    {
+        int width, height;
+        int rawStep, maskStep;
+        byte[] raw = new byte[0];
+        byte[] mask = new byte[0];
+        final double[] result = new double[TargetResultPublisher.LENGTH];
+        long sequence;
+
+        /* Copies the whole images, ignoring their regions of interest */
+        void copyImages(IplImage rawImage, IplImage maskImage)
+        {
+            width = rawImage.width();
+            height = rawImage.height();
+            rawStep = rawImage.widthStep();
+            maskStep = maskImage.widthStep();
+            if (raw.length < rawStep * height)
+            {
+                raw = new byte[rawStep * height]; // Only when the resolution goes up
+            }
+            if (mask.length < maskStep * height)
+            {
+                mask = new byte[maskStep * height];
+            }
+            rawImage.getByteBuffer().get(raw, 0, rawStep * height);
+            maskImage.getByteBuffer().get(mask, 0, maskStep * height);
+        }
+
+        int getLength()
+        {
+            return 5 * 4 + 8 * result.length + (rawStep + maskStep) * height;
+        }
+    }
+
+    private final File directory;
+    private final String sessionName; // Segments of this run start with it, so runs don't overwrite each other
+    private final ConcurrentLinkedQueue<Record> freeRecords = new ConcurrentLinkedQueue<Record>();
+    private final DropOldestQueue<Record> writeQueue = new DropOldestQueue<Record>(kSlots);
+    private final Thread writeThread;
+    private volatile long droppedFrames = 0;
+    private volatile long writtenFrames = 0;
+
+    private final int maxSegments; // Files in the ring
+
+    // Only used by the write thread
+    private RandomAccessFile segmentFile = null;
+    private MappedByteBuffer segment = null;
+    private int segmentNumber = 0;
+    private int recordCount;
+
+    FrameRecorder(File directory, long maxBytes)
+    {
+        this.directory = directory;
+        // The one being written and at least one more
+        maxSegments = (int) Math.max(2, Math.min(maxBytes / kSegmentBytes, Integer.MAX_VALUE));
+        sessionName = Long.toString(System.currentTimeMillis());
+        for (int i = 0; i < kSlots; i++)
+        {
+            freeRecords.add(new Record());
+        }
+
+        writeThread = new Thread("KrunchCV recorder") {
+            @Override
+            public void run() {
+                runWriteThread();
+            }
+        };
+        writeThread.setDaemon(true);
+        writeThread.start();
+    }
+
+    /* Called from the thread that processes frames. Returns a free record, or null (the frame is dropped) */
+    Record acquire()
+    {
+        Record record = freeRecords.poll();
+        if (record == null)
+        {
+            droppedFrames++;
+        }
+        return record;
+    }
+
+    /* Hands a record from acquire to the writer */
+    void submit(Record record)
+    {
+        record.sequence = (long) record.result[TargetResultPublisher.SEQUENCE];
+        Record evicted = writeQueue.offer(record);
+        if (evicted != null) // Can't happen while the queue holds every slot, but don't lose the slot
+        {
+            droppedFrames++;
+            freeRecords.add(evicted);
+        }
+    }
+
+    long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    long getWrittenFrames()
+    {
+        return writtenFrames;
+    }
+
+    void shutdown()
+    {
+        writeThread.interrupt();
+        try
+        {
+            writeThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriteThread()
+    {
+        try
+        {
+            while (true)
+            {
+                Record record = writeQueue.take();
+                try
+                {
+                    this.write(record);
+                }
+                finally
+                {
+                    freeRecords.add(record);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Recorder shut down
+        }
+        catch (IOException e)
+        {
+            // Keep the dashboard running, every frame from here on is dropped
+            e.printStackTrace();
+            freeRecords.clear();
+        }
+        finally
+        {
+            this.closeSegment();
+        }
+    }
+
+    private void write(Record record) throws IOException
+    {
+        int length = record.getLength();
+        if (length > kSegmentBytes - HEADER_BYTES - kIndexCapacity * INDEX_ENTRY_BYTES)
+        {
+            droppedFrames++; // Doesn't fit in any segment
+            return;
+        }
+        if (segment == null || recordCount == kIndexCapacity || segment.remaining() < length)
+        {
+            this.openSegment();
+        }
+
+        int offset = segment.position();
+        segment.putInt(record.width);
+        segment.putInt(record.height);
+        segment.putInt(record.rawStep);
+        segment.putInt(record.maskStep);
+        segment.putInt(record.result.length);
+        for (double value : record.result)
+        {
+            segment.putDouble(value);
+        }
+        segment.put(record.raw, 0, record.rawStep * record.height);
+        segment.put(record.mask, 0, record.maskStep * record.height);
+
+        // The count goes last, so a crash never leaves an index entry without its record
+        int entry = HEADER_BYTES + recordCount * INDEX_ENTRY_BYTES;
+        segment.putInt(entry, offset);
+        segment.putInt(entry + 4, length);
+        segment.putLong(entry + 8, record.sequence);
+        recordCount++;
+        segment.putInt(8, recordCount);
+        writtenFrames++;
+    }
+
+    private void openSegment() throws IOException
+    {
+        this.closeSegment();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Can't create recording directory " + directory);
+        }
+
+        // Once the ring is full this is the oldest file, it is the right size already. Mapping a
+        // file again is fine on Windows even while an old mapping of it is still around.
+        File file = new File(directory, String.format("%s-%05d%s", sessionName, segmentNumber++ % maxSegments,
+                SEGMENT_EXTENSION));
+        segmentFile = new RandomAccessFile(file, "rw");
+        segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, kSegmentBytes);
+        recordCount = 0;
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putInt(8, 0);
+        segment.putInt(12, kIndexCapacity);
+        segment.position(HEADER_BYTES + kIndexCapacity * INDEX_ENTRY_BYTES);
+    }
+
+    private void closeSegment()
+    {
+        if (segment == null)
+        {
+            return;
+        }
+        segment.force();
+        segment = null; // Unmapped when it is garbage collected
+        try
+        {
+            segmentFile.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        segmentFile = null;
+    }
+
+    /* Checks the header of a mapped segment and returns its number of records */
+    static int readHeader(ByteBuffer segment, File file) throws IOException
+    {
+        if (segment.getInt(0) != MAGIC || segment.getInt(4) != VERSION)
+        {
+            throw new IOException(file + " is not a KrunchCV recording");
+        }
+        return segment.getInt(8);
+    }
+}
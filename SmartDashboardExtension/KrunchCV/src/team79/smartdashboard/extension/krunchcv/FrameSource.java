@@ -0,0 +1,26 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.IOException;
+
+/**
+ * A stream of frames to feed KrunchCVWidget with instead of the camera, for
+ * bench tests of throughput and frame drops (see FrameSourceRunner). The
+ * caller owns every frame it gets from next and disposes it when it is done.
+ *
+ * JpegFileSource and MjpegFileSource decode frames from files,
+ * PrefetchFrameSource decodes them ahead on a thread of its own and
+ * PacedFrameSource hands them out at a camera's frame rate.
+ *
+ * @author sebastian
+ */
+interface FrameSource
+{
+    /* Returns the next frame, or null at the end of the stream */
+    WPIColorImage next() throws IOException, InterruptedException;
+
+    /* Number of frames skipped instead of handed out so far */
+    long getDroppedFrames();
+
+    void close();
+}
@@ -0,0 +1,162 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Drives processImage from a FrameSource instead of the camera, to measure the
+ * sustained frame rate and the frames dropped at a camera's frame rate on a
+ * bench, without a camera or a robot. Unlike BatchReplayRunner the frames are
+ * decoded as they go (ahead of time on another thread with -prefetch), so
+ * long recordings don't have to fit in memory.
+ *
+ * Usage: FrameSourceRunner [options] <image, image dir, .mjpg or .krec file>
+ *   -settings <file>   settings file to load (default KrunchCVSettings.txt)
+ *   -fps <rate>        camera frame rate, e.g. 15 or 30, 0 for as fast as possible (default 0)
+ *   -passes <n>        passes over the frames, 0 for no end (default 1)
+ *   -prefetch <n>      frames decoded ahead on another thread, 0 to decode in line (default 4)
+ *   -pipelined         turn on pipelined processing
+ *   -trace <file>      replay the robot's values (e.g. "Heading") from a TableTrace as the frames go
+ *
+ * The widget runs on local tables (see LocalTable), so results are published
+ * the same way they are to the robot.
+ *
+ * @author sebastian
+ */
+public class FrameSourceRunner
+{
+    public static void main(String[] args)
+    {
+        String settingsFilename = KrunchCVWidget.DEFAULT_CSV_FILENAME;
+        double fps = 0.0;
+        int passes = 1;
+        int prefetch = 4;
+        boolean pipelined = false;
+        String traceFilename = null;
+        File path = null;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-settings") && i + 1 < args.length)
+            {
+                settingsFilename = args[++i];
+            }
+            else if (args[i].equals("-fps") && i + 1 < args.length)
+            {
+                fps = Double.parseDouble(args[++i]);
+            }
+            else if (args[i].equals("-passes") && i + 1 < args.length)
+            {
+                passes = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-prefetch") && i + 1 < args.length)
+            {
+                prefetch = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-pipelined"))
+            {
+                pipelined = true;
+            }
+            else if (args[i].equals("-trace") && i + 1 < args.length)
+            {
+                traceFilename = args[++i];
+            }
+            else
+            {
+                path = new File(args[i]);
+            }
+        }
+
+        if (path == null)
+        {
+            System.out.println("Usage: FrameSourceRunner [-settings file] [-fps rate] [-passes n] [-prefetch n] [-pipelined] "
+                    + "[-trace file] <image, image dir, .mjpg or .krec file>");
+            return;
+        }
+
+        FrameSource source = open(path, passes);
+        if (prefetch > 0)
+        {
+            source = new PrefetchFrameSource(source, prefetch);
+        }
+        source = new PacedFrameSource(source, fps);
+
+        LocalTable table = new LocalTable();
+        table.setLogging(false);
+        KrunchCVWidget widget = KrunchCVWidget.createOffline(settingsFilename, table, new LocalTable());
+        widget.PIPELINED_PROPERTY.setValue(pipelined);
+        try
+        {
+            TableTrace trace = (traceFilename != null) ? TableTrace.load(new File(traceFilename)) : null;
+            run(widget, source, table, trace);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            source.close();
+        }
+        System.exit(0);
+    }
+
+    /* The source for path: an MJPEG file, a recording segment, or an image or a directory of them */
+    static FrameSource open(File path, int passes)
+    {
+        String name = path.getName().toLowerCase();
+        if (path.isFile() && (name.endsWith(".mjpg") || name.endsWith(".mjpeg")))
+        {
+            return new MjpegFileSource(path, passes);
+        }
+        if (path.isFile() && name.endsWith(FrameRecorder.SEGMENT_EXTENSION))
+        {
+            return new RecordingFrameSource(path, passes);
+        }
+        return JpegFileSource.open(path, passes);
+    }
+
+    /* trace may be null, it is replayed on the wall clock */
+    static void run(KrunchCVWidget widget, FrameSource source, LocalTable table, TableTrace trace)
+            throws IOException, InterruptedException
+    {
+        long[] frameNanos = new long[1024];
+        int frames = 0;
+        long startTime = System.nanoTime();
+
+        WPIColorImage frame;
+        while ((frame = source.next()) != null)
+        {
+            if (trace != null)
+            {
+                trace.replayUntil(System.nanoTime() - startTime, table);
+            }
+            long frameStart = System.nanoTime();
+            widget.processImage(frame);
+            if (frames == frameNanos.length)
+            {
+                frameNanos = Arrays.copyOf(frameNanos, 2 * frames);
+            }
+            frameNanos[frames++] = System.nanoTime() - frameStart;
+            frame.dispose();
+        }
+
+        double seconds = (System.nanoTime() - startTime) / 1000000000.0;
+        if (frames == 0)
+        {
+            System.err.println("No frames");
+            return;
+        }
+        Arrays.sort(frameNanos, 0, frames);
+        System.err.format("%d frames in %.2f seconds (%.2f frames per second), %d dropped%n",
+                frames, seconds, frames / seconds, source.getDroppedFrames());
+        System.err.format("processImage p50 %.2f p95 %.2f max %.2f ms%n", frameNanos[frames / 2] / 1e6,
+                frameNanos[Math.min(frames - 1, (int)(frames * 0.95))] / 1e6, frameNanos[frames - 1] / 1e6);
+    }
+}
@@ -0,0 +1,79 @@
+package team79.smartdashboard.extension.krunchcv;
+
+/**
+ * The last kCapacity robot headings with the time they came in, so the heading
+ * can be looked up for the moment a frame was captured instead of the moment
+ * it is processed. The robot keeps turning while the image travels from the
+ * camera and is processed, and using the newer heading with the older image
+ * makes the azimuth overshoot.
+ *
+ * Samples are written from the NetworkTables listener thread and read from the
+ * frame thread, both under the object's lock.
+ *
+ * @author sebastian
+ */
+class HeadingHistory
+{
+    private static final int kCapacity = 256; // Several seconds of headings at the robot's update rate
+
+    private final long[] times = new long[kCapacity]; // System.nanoTime() when the heading came in
+    private final double[] headings = new double[kCapacity];
+    private int next = 0;
+    private int count = 0;
+
+    synchronized void record(long time, double heading)
+    {
+        times[next] = time;
+        headings[next] = heading;
+        next = (next + 1) % kCapacity;
+        if (count < kCapacity)
+        {
+            count++;
+        }
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /*
+     * Heading at the given time, interpolated between the samples around it. Times
+     * before the oldest or after the newest sample get that sample's heading.
+     */
+    synchronized double headingAt(long time)
+    {
+        if (count == 0)
+        {
+            return 0.0;
+        }
+
+        // Walk back from the newest sample to the first one at or before time
+        int newer = (next + kCapacity - 1) % kCapacity;
+        if (time >= times[newer])
+        {
+            return headings[newer];
+        }
+        for (int i = 1; i < count; i++)
+        {
+            int older = (newer + kCapacity - 1) % kCapacity;
+            if (times[older] <= time)
+            {
+                double fraction = (double)(time - times[older]) / (times[newer] - times[older]);
+                // Go the short way around in case the heading wrapped between the samples
+                double change = headings[newer] - headings[older];
+                if (change > 180.0)
+                {
+                    change -= 360.0;
+                }
+                else if (change < -180.0)
+                {
+                    change += 360.0;
+                }
+                return headings[older] + fraction * change;
+            }
+            newer = older;
+        }
+        return headings[newer];
+    }
+}
@@ -0,0 +1,439 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import com.googlecode.javacv.cpp.opencv_imgproc;
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.imageio.ImageIO;
+
+/**
+ * Searches the HSV thresholds for the ones that find the marked up targets of
+ * a set of sample images, and writes them to a settings file in the format
+ * loadSettingsFile reads (KrunchCVSettings.txt).
+ *
+ * The marked up targets come from an annotation file with one image per line:
+ * "path, x, y, width, height" for the pixel box of the target, or "path, none"
+ * for an image without one. Paths are relative to the annotation file, lines
+ * starting with # are skipped.
+ *
+ * The search is coordinate descent: every round tries a few steps up and down
+ * on each of the six thresholds, keeps the best change, and halves the step
+ * once nothing helps. The settings of a round are scored in parallel, one
+ * headless widget per worker thread (with its own contour storage, see
+ * DaisyExtensions.ContourContext), each with its own binary images that are
+ * allocated once. Settings are scored with the detection the dashboard runs.
+ * The HSV conversion doesn't depend on the thresholds, so it is done once per
+ * image up front and shared by the workers.
+ *
+ * A setting scores the fraction of images it gets right (a target overlapping
+ * the marked up box by at least kMinOverlap, or no target when there is none)
+ * minus kCostPerMaskFraction times the fraction of the image its mask lets
+ * through, so a looser threshold that lets through lots of blobs (which the
+ * hole closing and contour finding pay for) has to earn its cost. The cost is
+ * counted rather than timed, since the workers time each other's load and the
+ * same setting would score differently from run to run. The min and
+ * max widths of rectangular goals are set from the marked up boxes, the other
+ * settings are kept as they are in the input file.
+ *
+ * @author sebastian
+ */
+public class HsvAutoTuner
+{
+    private static final int[] TUNED = {VisionSettings.HUE_MIN, VisionSettings.HUE_MAX, VisionSettings.SAT_MIN,
+        VisionSettings.SAT_MAX, VisionSettings.VAL_MIN, VisionSettings.VAL_MAX};
+    private static final int[] STEPS = {32, 16, 8, 4, 2, 1};
+    private static final int kStepsPerSide = 2; // Each round tries 1 and 2 steps up and down
+    private static final int kMaxRoundsPerStep = 64;
+    private static final double kMinOverlap = 0.5; // Intersection over union of a correct target
+    private static final double kOverlapWeight = 0.01; // Mean overlap of the correct targets, to break ties
+    private static final double kCostPerMaskFraction = 0.1; // Letting 10% of an image through is worth 1% of the images
+    private static final double kMinWidthMargin = 0.8; // Width bounds around the smallest and largest marked up box
+    private static final double kMaxWidthMargin = 1.25;
+
+    /* An image with its HSV version and its marked up target */
+    private static class AnnotatedFrame
+    {
+        final File file;
+        final int width, height;
+        final IplImage hsv; // Shared by the workers, only read
+        final boolean hasTarget;
+        final int x, y, boxWidth, boxHeight;
+
+        AnnotatedFrame(File file, boolean hasTarget, int x, int y, int boxWidth, int boxHeight) throws IOException
+        {
+            this.file = file;
+            this.hasTarget = hasTarget;
+            this.x = x;
+            this.y = y;
+            this.boxWidth = boxWidth;
+            this.boxHeight = boxHeight;
+
+            WPIColorImage image = new WPIColorImage(ImageIO.read(file));
+            width = image.getWidth();
+            height = image.getHeight();
+            hsv = DaisyExtensions.acquireImage(width, height, 8, 3);
+            opencv_imgproc.cvCvtColor(DaisyExtensions.getIplImage(image), hsv, opencv_imgproc.CV_BGR2HSV);
+            image.dispose();
+        }
+    }
+
+    /* How well one setting did on all of the images */
+    private static class Score
+    {
+        int correct;
+        double overlapSum; // Of the correct targets
+        double maskFractionSum; // Of the images' pixels that got through the threshold and hole closing
+        long nanos; // Only reported, the score doesn't depend on it
+        int frames;
+
+        double value()
+        {
+            double accuracy = (double) correct / frames;
+            double meanOverlap = (correct > 0) ? overlapSum / correct : 0.0;
+            return accuracy + kOverlapWeight * meanOverlap - kCostPerMaskFraction * this.meanMaskFraction();
+        }
+
+        double meanMaskFraction()
+        {
+            return maskFractionSum / frames;
+        }
+
+        double millisPerFrame()
+        {
+            return nanos / 1e6 / frames;
+        }
+    }
+
+    /* A widget and the binary image it thresholds into, used by one thread at a time */
+    private static class Worker
+    {
+        final KrunchCVWidget widget;
+        IplImage bin = null;
+        int width = -1, height = -1;
+
+        Worker(String settingsFilename)
+        {
+            widget = KrunchCVWidget.createOffline(settingsFilename, new LocalTable(), new LocalTable());
+        }
+
+        Score evaluate(double[] values, List<AnnotatedFrame> frames)
+        {
+            widget.applySettingValues(values);
+            Score score = new Score();
+            for (AnnotatedFrame frame : frames)
+            {
+                // The frames are sorted by size, so this only happens once per size
+                if (frame.width != width || frame.height != height)
+                {
+                    width = frame.width;
+                    height = frame.height;
+                    widget.allocateImages(width, height);
+                    DaisyExtensions.releaseImage(bin);
+                    bin = DaisyExtensions.acquireImage(width, height, 8, 1);
+                }
+
+                // The same detection the dashboard runs: contours, or blobs while BLOB_LABELING_PROPERTY is set
+                long start = System.nanoTime();
+                widget.thresholdHSV(frame.hsv, bin);
+                widget.closeHoles(bin);
+                widget.findContours(bin);
+                widget.processForRectangularGoals(0.0);
+                widget.releaseContourMemory();
+                score.nanos += System.nanoTime() - start;
+                score.frames++;
+                score.maskFractionSum += (double) opencv_core.cvCountNonZero(bin) / (width * height); // Not changed by the detection
+
+                if (!frame.hasTarget)
+                {
+                    if (!widget.isTargetFound())
+                    {
+                        score.correct++;
+                    }
+                }
+                else if (widget.isTargetFound())
+                {
+                    double overlap = overlap(frame, widget.getTargetX(), widget.getTargetY(),
+                            widget.getTargetWidth(), widget.getTargetHeight());
+                    if (overlap >= kMinOverlap)
+                    {
+                        score.correct++;
+                        score.overlapSum += overlap;
+                    }
+                }
+            }
+            return score;
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: HsvAutoTuner <annotation file> <settings file> [output settings file] [threads]");
+            return;
+        }
+
+        String output = (args.length > 2) ? args[2] : args[1];
+        int threads = (args.length > 3) ? Math.max(1, Integer.parseInt(args[3]))
+                : Runtime.getRuntime().availableProcessors();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<AnnotatedFrame> frames = loadAnnotations(new File(args[0]));
+            if (frames.isEmpty())
+            {
+                System.err.println("No annotated images found");
+                return;
+            }
+
+            BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+            for (int i = 0; i < threads; i++)
+            {
+                idle.add(new Worker(args[1]));
+            }
+            Worker writer = idle.peek();
+
+            double[] values = writer.widget.getSettingValues();
+            setWidthBounds(values, frames);
+            Score start = evaluate(pool, idle, values, frames);
+            report("Start", start, values);
+
+            values = tune(pool, idle, values, frames);
+            Score end = evaluate(pool, idle, values, frames);
+            report("Tuned", end, values);
+
+            writer.widget.applySettingValues(values);
+            writer.widget.writeSettingsFile(output);
+            System.err.println("Wrote " + output);
+
+            for (AnnotatedFrame frame : frames)
+            {
+                DaisyExtensions.releaseImage(frame.hsv);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        catch (InterruptedException e)
+        {
+            e.printStackTrace();
+        }
+        catch (ExecutionException e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        System.exit(0);
+    }
+
+    /* Coordinate descent over the thresholds, returns the best values found */
+    static double[] tune(ExecutorService pool, BlockingQueue<Worker> idle, double[] values,
+            List<AnnotatedFrame> frames) throws InterruptedException, ExecutionException
+    {
+        double[] best = values.clone();
+        double bestScore = evaluate(pool, idle, best, frames).value();
+        for (int step : STEPS)
+        {
+            for (int round = 0; round < kMaxRoundsPerStep; round++)
+            {
+                // Score every neighbour of the current best at once
+                List<double[]> candidates = new ArrayList<double[]>();
+                for (int setting : TUNED)
+                {
+                    for (int k = -kStepsPerSide; k <= kStepsPerSide; k++)
+                    {
+                        double[] candidate = best.clone();
+                        candidate[setting] = Math.max(0.0, Math.min(255.0, best[setting] + k * step));
+                        if (candidate[setting] != best[setting] && isOrdered(candidate, setting))
+                        {
+                            candidates.add(candidate);
+                        }
+                    }
+                }
+                List<Future<Score>> scores = new ArrayList<Future<Score>>();
+                for (double[] candidate : candidates)
+                {
+                    scores.add(submit(pool, idle, candidate, frames));
+                }
+
+                int winner = -1;
+                for (int i = 0; i < candidates.size(); i++)
+                {
+                    double score = scores.get(i).get().value();
+                    if (score > bestScore)
+                    {
+                        bestScore = score;
+                        winner = i;
+                    }
+                }
+                if (winner < 0)
+                {
+                    break; // Nothing helps at this step size
+                }
+                best = candidates.get(winner);
+            }
+            System.err.format("step %d: score %.4f%n", step, bestScore);
+        }
+        return best;
+    }
+
+    static Score evaluate(ExecutorService pool, BlockingQueue<Worker> idle, double[] values,
+            List<AnnotatedFrame> frames) throws InterruptedException, ExecutionException
+    {
+        return submit(pool, idle, values, frames).get();
+    }
+
+    private static Future<Score> submit(ExecutorService pool, final BlockingQueue<Worker> idle, final double[] values,
+            final List<AnnotatedFrame> frames)
+    {
+        return pool.submit(new Callable<Score>() {
+            @Override
+            public Score call() throws InterruptedException {
+                // There are as many workers as threads, so this never waits
+                Worker worker = idle.take();
+                try
+                {
+                    return worker.evaluate(values, frames);
+                }
+                finally
+                {
+                    idle.add(worker);
+                }
+            }
+        });
+    }
+
+    /* The MIN of a threshold can't go above its MAX (MIN and MAX are next to each other, MIN first) */
+    private static boolean isOrdered(double[] values, int setting)
+    {
+        int min = setting - (setting % 2);
+        return values[min] <= values[min + 1];
+    }
+
+    /* Sets the width bounds of rectangular goals around the marked up boxes */
+    private static void setWidthBounds(double[] values, List<AnnotatedFrame> frames)
+    {
+        int minWidth = Integer.MAX_VALUE, maxWidth = 0;
+        for (AnnotatedFrame frame : frames)
+        {
+            if (frame.hasTarget)
+            {
+                minWidth = Math.min(minWidth, frame.boxWidth);
+                maxWidth = Math.max(maxWidth, frame.boxWidth);
+            }
+        }
+        if (maxWidth > 0)
+        {
+            values[VisionSettings.MIN_WIDTH_RECT_GOALS] = Math.floor(kMinWidthMargin * minWidth);
+            values[VisionSettings.MAX_WIDTH_RECT_GOALS] = Math.ceil(kMaxWidthMargin * maxWidth);
+        }
+    }
+
+    /* Intersection over union of the marked up box and a target */
+    static double overlap(AnnotatedFrame frame, int x, int y, int width, int height)
+    {
+        int left = Math.max(frame.x, x);
+        int top = Math.max(frame.y, y);
+        int right = Math.min(frame.x + frame.boxWidth, x + width);
+        int bottom = Math.min(frame.y + frame.boxHeight, y + height);
+        if (right <= left || bottom <= top)
+        {
+            return 0.0;
+        }
+        double intersection = (double)(right - left) * (bottom - top);
+        return intersection / ((double) frame.boxWidth * frame.boxHeight + (double) width * height - intersection);
+    }
+
+    /* Loads the images of the annotation file, sorted by size so the workers reallocate as little as possible */
+    static List<AnnotatedFrame> loadAnnotations(File annotationFile) throws IOException
+    {
+        List<AnnotatedFrame> frames = new ArrayList<AnnotatedFrame>();
+        BufferedReader reader = new BufferedReader(new FileReader(annotationFile));
+        try
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                {
+                    continue;
+                }
+
+                String[] fields = line.split(",");
+                File image = new File(annotationFile.getParentFile(), fields[0].trim());
+                if (fields.length == 2 && fields[1].trim().equalsIgnoreCase("none"))
+                {
+                    frames.add(new AnnotatedFrame(image, false, 0, 0, 0, 0));
+                }
+                else if (fields.length == 5)
+                {
+                    try
+                    {
+                        frames.add(new AnnotatedFrame(image, true, Integer.parseInt(fields[1].trim()),
+                                Integer.parseInt(fields[2].trim()), Integer.parseInt(fields[3].trim()),
+                                Integer.parseInt(fields[4].trim())));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        throw new IOException(annotationFile + ":" + lineNumber + ": bad box: " + line);
+                    }
+                }
+                else
+                {
+                    throw new IOException(annotationFile + ":" + lineNumber + ": expected path, x, y, width, height"
+                            + " or path, none: " + line);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        Collections.sort(frames, new Comparator<AnnotatedFrame>() {
+            @Override
+            public int compare(AnnotatedFrame a, AnnotatedFrame b) {
+                return (a.width != b.width) ? a.width - b.width : a.height - b.height;
+            }
+        });
+        return frames;
+    }
+
+    private static void report(String label, Score score, double[] values)
+    {
+        System.err.format("%s: %d/%d correct, %.2f%% of the pixels in the mask, %.2f ms per image, score %.4f%n",
+                label, score.correct, score.frames, 100.0 * score.meanMaskFraction(), score.millisPerFrame(),
+                score.value());
+        for (int setting : TUNED)
+        {
+            System.err.format("  %s = %.0f%n", VisionSettings.KEYS[setting], values[setting]);
+        }
+        System.err.format("  %s = %.0f, %s = %.0f%n",
+                VisionSettings.KEYS[VisionSettings.MIN_WIDTH_RECT_GOALS], values[VisionSettings.MIN_WIDTH_RECT_GOALS],
+                VisionSettings.KEYS[VisionSettings.MAX_WIDTH_RECT_GOALS], values[VisionSettings.MAX_WIDTH_RECT_GOALS]);
+    }
+}
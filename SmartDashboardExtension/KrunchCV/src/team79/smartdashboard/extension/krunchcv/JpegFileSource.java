@@ -0,0 +1,100 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * Frames from image files, decoded as they are asked for: a single image, or
+ * every .jpg under a directory (e.g. "Sample Images/Angle Tests") sorted by
+ * path. The files are gone through the given number of passes.
+ *
+ * @author sebastian
+ */
+class JpegFileSource implements FrameSource
+{
+    private final List<File> files;
+    private final int passes; // 0 for no end
+    private int index = 0;
+    private int pass = 0;
+
+    JpegFileSource(List<File> files, int passes)
+    {
+        this.files = files;
+        this.passes = passes;
+    }
+
+    /* The image at path, or every .jpg under it if it is a directory */
+    static JpegFileSource open(File path, int passes)
+    {
+        List<File> files = new ArrayList<File>();
+        if (path.isFile())
+        {
+            files.add(path); // A file given on its own is taken whatever it is called
+        }
+        else
+        {
+            addTree(path, files);
+        }
+        return new JpegFileSource(files, passes);
+    }
+
+    @Override
+    public WPIColorImage next() throws IOException
+    {
+        if (files.isEmpty() || (passes > 0 && pass >= passes))
+        {
+            return null;
+        }
+
+        File file = files.get(index);
+        if (++index == files.size())
+        {
+            index = 0;
+            pass++;
+        }
+
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+        {
+            throw new IOException("Can't decode " + file);
+        }
+        return new WPIColorImage(image);
+    }
+
+    @Override
+    public long getDroppedFrames()
+    {
+        return 0;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    private static void addTree(File file, List<File> files)
+    {
+        if (file.isDirectory())
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                Arrays.sort(children);
+                for (File child : children)
+                {
+                    addTree(child, files);
+                }
+            }
+        }
+        else if (file.getName().toLowerCase().endsWith(".jpg"))
+        {
+            files.add(file);
+        }
+    }
+}
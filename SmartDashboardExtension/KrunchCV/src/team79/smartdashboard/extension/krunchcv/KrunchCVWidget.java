@@ -2,23 +2,27 @@ package team79.smartdashboard.extension.krunchcv;
 
 import com.googlecode.javacv.CanvasFrame;
 import com.googlecode.javacv.cpp.opencv_core;
+import com.googlecode.javacv.cpp.opencv_core.CvFont;
+import com.googlecode.javacv.cpp.opencv_core.CvPoint;
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+import com.googlecode.javacv.cpp.opencv_core.CvScalar;
 import com.googlecode.javacv.cpp.opencv_core.CvSize;
 import com.googlecode.javacv.cpp.opencv_core.IplImage;
 import com.googlecode.javacv.cpp.opencv_imgproc;
 import com.googlecode.javacv.cpp.opencv_imgproc.IplConvKernel;
 import edu.wpi.first.smartdashboard.camera.WPICameraExtension;
+import edu.wpi.first.smartdashboard.properties.BooleanProperty;
+import edu.wpi.first.smartdashboard.properties.DoubleProperty;
 import edu.wpi.first.smartdashboard.properties.IntegerProperty;
+import edu.wpi.first.smartdashboard.properties.MultiProperty;
 import edu.wpi.first.smartdashboard.properties.Property;
 import edu.wpi.first.smartdashboard.properties.StringProperty;
 import edu.wpi.first.smartdashboard.robot.Robot;
 import edu.wpi.first.wpijavacv.DaisyExtensions;
-import edu.wpi.first.wpijavacv.WPIBinaryImage;
-import edu.wpi.first.wpijavacv.WPIColor;
 import edu.wpi.first.wpijavacv.WPIColorImage;
 import edu.wpi.first.wpijavacv.WPIContour;
 import edu.wpi.first.wpijavacv.WPIImage;
 import edu.wpi.first.wpijavacv.WPIPoint;
-import edu.wpi.first.wpijavacv.WPIPolygon;
 import edu.wpi.first.wpilibj.networktables.NetworkTable;
 import edu.wpi.first.wpilibj.tables.ITable;
 import edu.wpi.first.wpilibj.tables.ITableListener;
@@ -33,8 +37,11 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 
@@ -45,63 +52,115 @@ import javax.swing.JOptionPane;
 public class KrunchCVWidget extends WPICameraExtension implements ITableListener
 {
     public static final String NAME = "Krunch Target Tracker"; // Name of widget in View->Add list
-    private WPIColor alignedColor = new WPIColor(0, 255, 0); // Color of overlay when camera is aligned with goal
-    private WPIColor unalignedColor = new WPIColor(255, 0, 0); // Color of overlay when camera is unaligned with goal
-    private WPIColor centerPointColor = new WPIColor(255, 255, 0); // Color of polygon center point
     
     // Constants that need to be tuned
-    private static final double kNearlyHorizontalSlope = Math.tan(Math.toRadians(20)); // Slope of an acceptable horizontal line in degrees
-    private static final double kNearlyVerticalSlope = Math.tan(Math.toRadians(90-20)); // Slope of an acceptable vertical line in degrees
+    // (the slope and ratio limits of the goals are in QuadClassifier)
     private static final int kMinWidthRectGoals = 40; // Contour width ratios of rectangular goals
     private static final int kMaxWidthRectGoals = 200;
-    private static final int kMinWidthPyramidHGoals = 20; // Contour width ratios of pyramid horizontal goals *NEEDS TO BE CHANGED
-    private static final int kMaxWidthPyramidHGoals = 200;
-    private static final int kMinWidthPyramidVGoals = 20; // Contour width ratios of pyramid vertical goals *NEEDS TO BE CHANGED
-    private static final int kMaxWidthPyramidVGoals = 200;
     private static final int kHoleClosingIterations = 9; // Number of iterations of morphology operation
+    private static final int kHollowCleanupIterations = 1; // Only bridges small breaks in the tape for hollow target detection
+    private static final double kMinHoleFraction = 0.15; // Min area of a hollow target's hole, as a fraction of its bounding box
+    private static final double kMinBlobFillRatio = 0.75; // Min blob area, as a fraction of the quadrilateral of its corners
+    private static final int kCoarseWidth = 160; // Width of the downscaled image for coarse to fine detection
+    private static final double kCoarseMaxRatio = 0.75; // Looser height/width ratios for coarse candidates,
+    private static final double kCoarseMinRatio = 0.02; // thin targets lose a lot of precision when downscaled
     
     private static final double kShooterOffsetDeg = 0.0; // Offset for shooter
     private static final double kHorizontalFOVDeg = 47.0; // Horizontal field of view of camera
 
     private static final double kVerticalFOVDeg = 480.0/640.0*kHorizontalFOVDeg; // Vertical field of view of camera *(FROM 640x480 images)
 
+    // Stages of processImage that are timed every frame
+    static final int STAGE_HSV = 0;
+    static final int STAGE_THRESHOLD = 1;
+    static final int STAGE_CLOSE = 2;
+    static final int STAGE_CONTOURS = 3;
+    static final int STAGE_GOALS = 4;
+    static final int STAGE_TOTAL = 5;
+    static final String[] STAGE_NAMES = {"hsv", "threshold", "close", "contours", "goals", "total"};
+    
+    private static final int kLatencyWindowFrames = 120; // Number of frames the latency statistics are taken over
+    private static final long kDiagnosticsIntervalNanos = 500000000L; // Publish latency statistics twice a second
+    private static final String DIAGNOSTICS_TABLE_NAME = "KrunchCV Diagnostics"; // Sub table for latency statistics
+    
+    // Values of OVERLAY_PROPERTY
+    static final int OVERLAY_FULL = 0; // Every candidate, the target and the crosshair
+    static final int OVERLAY_TARGET_ONLY = 1; // Just the target and the crosshair
+    static final int OVERLAY_RENDERER_THREAD = 2; // Full overlay, drawn on another thread (see OverlayRenderer)
+    static final int OVERLAY_OFF = 3;
     
     // Widget Property keys
     private final String teamNumberKey = "Team Number";
     private final String ipKey = "Network Table IP";
     private final String portKey = "Network Table Port";
     private final String tableNameKey = "Table name";
+    private final String latencyDiagnosticsKey = "Latency Diagnostics";
+    private final String latencyHudKey = "Latency HUD";
+    private final String pipelinedKey = "Pipelined Processing";
+    private final String roiTrackingKey = "ROI Tracking";
+    private final String coarseToFineKey = "Coarse To Fine";
+    private final String hollowTargetsKey = "Hollow Target Detection";
+    private final String blobLabelingKey = "Blob Labeling";
+    private final String resultAzimuthEpsilonKey = "Result Azimuth Epsilon";
+    private final String resultRangeEpsilonKey = "Result Range Epsilon";
+    private final String cameraLatencyKey = "Camera Latency ms";
+    private final String pyramidGoalsKey = "Pyramid Goals";
+    private final String overlayKey = "Overlay";
+    private final String recordFramesKey = "Record Frames";
+    private final String recordingDirectoryKey = "Recording Directory";
+    private final String recordingMaxMBKey = "Recording Max MB";
     
     // Widget Properties
     public final IntegerProperty TEAM_NUMBER_PROPERTY = new IntegerProperty(this, teamNumberKey, 79);
     public final StringProperty IP_PROPERTY = new StringProperty(this, ipKey, "10.0.79.2");
     public final IntegerProperty PORT_PROPERTY = new IntegerProperty(this, portKey, 1735);
     public final StringProperty TABLE_NAME_PROPERTY = new StringProperty(this, tableNameKey); // Not really needed (as of now)
+    public final BooleanProperty LATENCY_DIAGNOSTICS_PROPERTY = new BooleanProperty(this, latencyDiagnosticsKey, false); // Time stages and publish statistics
+    public final BooleanProperty LATENCY_HUD_PROPERTY = new BooleanProperty(this, latencyHudKey, false); // Also draw statistics on the image
+    public final BooleanProperty PIPELINED_PROPERTY = new BooleanProperty(this, pipelinedKey, false); // Run the stages on worker threads (without ROI tracking or coarse to fine)
+    public final BooleanProperty ROI_TRACKING_PROPERTY = new BooleanProperty(this, roiTrackingKey, false); // Only search around the last target (not while pipelined)
+    public final BooleanProperty COARSE_TO_FINE_PROPERTY = new BooleanProperty(this, coarseToFineKey, false); // Search a downscaled image first (not while pipelined)
+    public final BooleanProperty HOLLOW_TARGETS_PROPERTY = new BooleanProperty(this, hollowTargetsKey, false); // Find targets by their hole instead of filling them in
+    public final BooleanProperty BLOB_LABELING_PROPERTY = new BooleanProperty(this, blobLabelingKey, false); // Label blobs in Java instead of finding contours
+    public final DoubleProperty RESULT_AZIMUTH_EPSILON_PROPERTY = new DoubleProperty(this, resultAzimuthEpsilonKey, 0.1); // Degrees the azimuth has to move before a new result is sent
+    public final DoubleProperty RESULT_RANGE_EPSILON_PROPERTY = new DoubleProperty(this, resultRangeEpsilonKey, 1.0); // Inches the range has to move before a new result is sent
+    public final DoubleProperty CAMERA_LATENCY_PROPERTY = new DoubleProperty(this, cameraLatencyKey, 0.0); // Time from exposure until processImage gets the frame
+    public final MultiProperty OVERLAY_PROPERTY = new MultiProperty(this, overlayKey); // What is drawn on the image, see OVERLAY_*
+    public final BooleanProperty PYRAMID_GOALS_PROPERTY = new BooleanProperty(this, pyramidGoalsKey, false); // Look for the pyramid goal instead of the rectangular goals
+    public final BooleanProperty RECORD_FRAMES_PROPERTY = new BooleanProperty(this, recordFramesKey, false); // Record frames, masks and results for replay (see FrameRecorder)
+    public final StringProperty RECORDING_DIRECTORY_PROPERTY = new StringProperty(this, recordingDirectoryKey, "KrunchCV Recordings");
+    public final IntegerProperty RECORDING_MAX_MB_PROPERTY = new IntegerProperty(this, recordingMaxMBKey, 1024); // Oldest segments are deleted past this
     
     
     // Constants that pertain to HSV threshold value file
-    private static final String DEFAULT_CSV_FILENAME = "KrunchCVSettings.txt";
+    static final String DEFAULT_CSV_FILENAME = "KrunchCVSettings.txt";
     private static final String s_lineSeparator = System.getProperty("line.separator");
     
     // SmartDashboard Key Values (DOUBLES ONLY)
+    // Only touched while holding its lock, the frame thread reads the settings snapshot instead
     Map<String, Object> keyMap;
+    private final double[] settingValues = new double[VisionSettings.KEYS.length]; // Same lock as keyMap
+    private final AtomicBoolean settingsChanged = new AtomicBoolean(false); // settingValues changed since the last snapshot
+    private final AtomicReference<VisionSettings> settings = new AtomicReference<VisionSettings>();
     
     private final String brightKey = "BRIGHTNESS";
     private final String contrastKey = "CONTRAST";
-    private final String hueMinKey = "HUE MIN";
-    private final String hueMaxKey = "HUE MAX";
-    private final String satMinKey = "SAT MIN";
-    private final String satMaxKey = "SAT MAX";
-    private final String valMinKey = "VAL MIN";
-    private final String valMaxKey = "VAL MAX";
-    private final String goalAlignToleranceKey = "G.O.A.T.";
-    private final String cameraHeightInchesKey = "Camera Height in Inches"; // Height of camera from ground in inches
+    private final String hueMinKey = VisionSettings.HUE_MIN_KEY;
+    private final String hueMaxKey = VisionSettings.HUE_MAX_KEY;
+    private final String satMinKey = VisionSettings.SAT_MIN_KEY;
+    private final String satMaxKey = VisionSettings.SAT_MAX_KEY;
+    private final String valMinKey = VisionSettings.VAL_MIN_KEY;
+    private final String valMaxKey = VisionSettings.VAL_MAX_KEY;
+    private final String goalAlignToleranceKey = VisionSettings.GOAL_ALIGN_TOLERANCE_KEY;
+    private final String cameraHeightInchesKey = VisionSettings.CAMERA_HEIGHT_INCHES_KEY; // Height of camera from ground in inches
     private final String shooterTiltedKey = "shooter tilted"; // Whether or not the shooter is tilted
-    private final String cameraPitchDegLowKey = "Camera Pitch Degree Low"; // Low angle camera pitch degree
-    private final String cameraPitchDegHighKey = "Camera Pitch Degree High"; // High angle camera pitch degree
-    private final String topTargetHeightInchesKey = "Top Target Height Inches"; // Height of the top target
-    private final String minWidthRectGoalsKey = "Min Width Rect Goals"; // Min width in pixels that vision will consider a goal
-    private final String maxWidthRectGoalsKey = "Max Width Rect Goals"; // Max width in pixels that vision will consider a goal
+    private static final String headingKey = "Heading"; // Heading of the robot in degrees
+    private final String cameraPitchDegLowKey = VisionSettings.CAMERA_PITCH_DEG_LOW_KEY; // Low angle camera pitch degree
+    private final String cameraPitchDegHighKey = VisionSettings.CAMERA_PITCH_DEG_HIGH_KEY; // High angle camera pitch degree
+    private final String topTargetHeightInchesKey = VisionSettings.TOP_TARGET_HEIGHT_INCHES_KEY; // Height of the top target
+    private final String minWidthRectGoalsKey = VisionSettings.MIN_WIDTH_RECT_GOALS_KEY; // Min width in pixels that vision will consider a goal
+    private final String maxWidthRectGoalsKey = VisionSettings.MAX_WIDTH_RECT_GOALS_KEY; // Max width in pixels that vision will consider a goal
+    private final String pyramidTargetHeightInchesKey = VisionSettings.PYRAMID_TARGET_HEIGHT_INCHES_KEY; // Height of the pyramid target's centroid
     
     private static final String saveKey = "save"; // Boolean value
     
@@ -111,24 +170,79 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
 
     private boolean m_debugMode = false;
     
+    private boolean m_headless = false; // No windows, dialogs or printed results (benchmarks and batch runs)
+    
+    private String settingsFilename = DEFAULT_CSV_FILENAME;
+    
     private CanvasFrame cf;
 
     private NetworkTable netTable = null;
     
+    // The robot's tables, or local ones for offline runs (see LocalTable)
+    private ITable table;
+    private ITable preferences;
+    private boolean m_localTables = false;
+    
     // Store JavaCV temporaries as members to reduce memory management during processing
     private CvSize size = null;
     private WPIContour[] contours;
-    private ArrayList<WPIPolygon> rectGoalPolygons, pyramidGoalHPolygons, pyramidGoalVPolygons;
-    private ArrayList<HorizontalPyramidRect> horizontalPyramidRects;
-    private ArrayList<VerticalPyramidRect> verticalPyramidRects;
+    private QuadClassifier quads = new QuadClassifier(); // Goal candidates of the frame, of every type
+    private DaisyExtensions.ContourContext contourContext = new DaisyExtensions.ContourContext(); // Only this widget's
     private IplConvKernel morphKernel;
+    private DaisyExtensions.ContourFilter rectGoalFilter; // Drops contours that can't be rectangular goals early
+    private DaisyExtensions.ContourFilter coarseFilter; // Same for the coarse level of coarse to fine detection
+    private BlobLabeler blobLabeler = new BlobLabeler(); // Used instead of contours while BLOB_LABELING_PROPERTY is set
+    private PyramidPairer pyramidPairer = new PyramidPairer(); // Matches the horizontal and vertical pyramid rects
     private IplImage bin; // Container for binary image
     private IplImage hsv;
-    private IplImage hue1, hue2;
-    private IplImage sat1, sat2;
-    private IplImage val1, val2;
-    private WPIPoint linePt1, linePt2, linePt3, linePt4;
+    private CvScalar hsvLower, hsvUpper; // Bounds for the single pass HSV range threshold
+    private WPIPoint linePt1, linePt3; // Points on the vertical and horizontal crosshair lines
     private int horizontalOffsetPixels;
+    
+    // Results and stage times of the last processed frame
+    private final long[] stageNanos = new long[STAGE_NAMES.length];
+    private boolean targetFound = false;
+    private double targetAzimuth, targetRange;
+    private int targetX, targetY, targetWidth, targetHeight; // Pixel box of the target
+    private boolean targetAligned = false; // Target is within the tolerance of the crosshair
+    private int targetCandidate = -1; // Candidate in quads that is the rectangular target, -1 if none
+    private int targetPyramidHorizontal = -1, targetPyramidVertical = -1; // Candidates of the pyramid target
+    private long frameSequence = 0; // Number of the frame, sent to the robot with its result
+    private TargetResultPublisher resultPublisher = new TargetResultPublisher();
+    private final double[] resultRecord = new double[TargetResultPublisher.LENGTH]; // Result of the last frame, from publishResult
+    private HeadingHistory headingHistory = new HeadingHistory(); // Timestamped headings from the table listener
+    private TargetFilter targetFilter = new TargetFilter(); // Smooths the target over frames
+    private boolean pyramidResult = false; // The last detection looked for the pyramid goal
+    private boolean pyramidFiltered = false; // Type of the goal the target filter is tracking
+    private boolean pyramidHeightWarned = false;
+    private boolean pipelineIgnoreWarned = false; // Told that ROI tracking and coarse to fine are ignored while pipelined
+    
+    // Region of interest tracking (only used while ROI_TRACKING_PROPERTY is set)
+    private RoiTracker roiTracker;
+    private CvRect roi;
+    
+    // Downscaled images for coarse to fine detection (only used while COARSE_TO_FINE_PROPERTY is set)
+    private int coarseScale = 1;
+    private int coarseClosingIterations;
+    private IplImage coarseInput, coarseHsv, coarseBin;
+    private int[] coarseBoxes = new int[4 * 16]; // Candidates as left, top, right, bottom (exclusive), grown as needed
+    private int coarseBoxCount;
+    private ArrayList<WPIContour> fineContours = new ArrayList<WPIContour>();
+    
+    // Rolling latency statistics (only updated when LATENCY_DIAGNOSTICS_PROPERTY is set)
+    private StageLatencyStats latencyStats;
+    private String latencyHudText = null;
+    private CvFont hudFont;
+    private CvPoint hudOrigin;
+    
+    private FramePipeline pipeline = null; // Only exists while PIPELINED_PROPERTY is set
+    // Images last returned by a pipeline or overlay renderer that shut down, disposed on the next frame
+    private List<WPIColorImage> retiredImages = new ArrayList<WPIColorImage>();
+    
+    private Overlay overlay = new Overlay(); // Overlay of the last frame, when it is drawn on the camera thread
+    private OverlayRenderer overlayRenderer = null; // Only exists while OVERLAY_PROPERTY is OVERLAY_RENDERER_THREAD
+    
+    private FrameRecorder recorder = null; // Only exists while RECORD_FRAMES_PROPERTY is set
 
     public KrunchCVWidget()
     {
@@ -136,30 +250,71 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
     }
 
     public KrunchCVWidget(boolean debug)
+    {
+        this(debug, false, DEFAULT_CSV_FILENAME);
+    }
+
+    public KrunchCVWidget(boolean debug, boolean headless, String settingsFilename)
+    {
+        this(debug, headless, settingsFilename, null, null);
+    }
+
+    /*
+     * Uses table and preferences instead of the robot's tables, if they are given. With
+     * local tables the heading is read and results are published in debug mode too.
+     */
+    KrunchCVWidget(boolean debug, boolean headless, String settingsFilename, ITable table, ITable preferences)
     {
         m_debugMode = debug;
+        m_headless = headless;
+        m_localTables = (table != null);
+        this.table = table;
+        this.preferences = preferences;
+        OVERLAY_PROPERTY.add("Full", OVERLAY_FULL);
+        OVERLAY_PROPERTY.add("Target Only", OVERLAY_TARGET_ONLY);
+        OVERLAY_PROPERTY.add("Renderer Thread", OVERLAY_RENDERER_THREAD);
+        OVERLAY_PROPERTY.add("Off", OVERLAY_OFF);
+        OVERLAY_PROPERTY.setDefault(headless ? OVERLAY_OFF : OVERLAY_FULL); // Nobody sees it without a display
+        this.settingsFilename = settingsFilename;
         morphKernel = IplConvKernel.create(3, 3, 1, 1, opencv_imgproc.CV_SHAPE_RECT, null);
+        hsvLower = new CvScalar();
+        hsvUpper = new CvScalar();
+        latencyStats = new StageLatencyStats(STAGE_NAMES, kLatencyWindowFrames);
+        roiTracker = new RoiTracker();
+        rectGoalFilter = new DaisyExtensions.ContourFilter();
+        rectGoalFilter.minRatio = QuadClassifier.kMinRatioRectGoals;
+        rectGoalFilter.maxRatio = QuadClassifier.kMaxRatioRectGoals;
+        coarseFilter = new DaisyExtensions.ContourFilter();
+        coarseFilter.minRatio = kCoarseMinRatio;
+        coarseFilter.maxRatio = kCoarseMaxRatio;
+        roi = new CvRect();
+        hudFont = new CvFont(opencv_core.CV_FONT_HERSHEY_PLAIN, 1.0, 1);
+        hudOrigin = opencv_core.cvPoint(5, 15);
         
-        cf = new CanvasFrame("Binary");
+        if(!m_headless)
+        {
+            cf = new CanvasFrame("Binary");
+        }
         
         // Create hashmap to store all values with keys
         // The second parameter is the default value
         keyMap = new HashMap<String, Object>();
-        keyMap.put(brightKey, 0.0);
-        keyMap.put(contrastKey, 0.0);
-        keyMap.put(hueMinKey, 0.0);
-        keyMap.put(hueMaxKey, 0.0);
-        keyMap.put(satMinKey, 0.0);
-        keyMap.put(satMaxKey, 0.0);
-        keyMap.put(valMinKey, 0.0);
-        keyMap.put(valMaxKey, 0.0);
-        keyMap.put(goalAlignToleranceKey, 0.0);
-        keyMap.put(cameraHeightInchesKey, 0.0);
-        keyMap.put(cameraPitchDegLowKey, 0.0);
-        keyMap.put(cameraPitchDegHighKey, 0.0);
-        keyMap.put(topTargetHeightInchesKey, 0.0);
-        keyMap.put(minWidthRectGoalsKey, 0.0);
-        keyMap.put(maxWidthRectGoalsKey, 0.0);
+        this.putSetting(brightKey, 0.0);
+        this.putSetting(contrastKey, 0.0);
+        this.putSetting(hueMinKey, 0.0);
+        this.putSetting(hueMaxKey, 0.0);
+        this.putSetting(satMinKey, 0.0);
+        this.putSetting(satMaxKey, 0.0);
+        this.putSetting(valMinKey, 0.0);
+        this.putSetting(valMaxKey, 0.0);
+        this.putSetting(goalAlignToleranceKey, 0.0);
+        this.putSetting(cameraHeightInchesKey, 0.0);
+        this.putSetting(cameraPitchDegLowKey, 0.0);
+        this.putSetting(cameraPitchDegHighKey, 0.0);
+        this.putSetting(topTargetHeightInchesKey, 0.0);
+        this.putSetting(minWidthRectGoalsKey, 0.0);
+        this.putSetting(maxWidthRectGoalsKey, 0.0);
+        this.putSetting(pyramidTargetHeightInchesKey, 0.0);
         
         // Update Properties (Setup networktable info)
         this.updateFromProperties();
@@ -175,13 +330,24 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
             handleCSVFileError(ex);
         }
         
-        DaisyExtensions.init();
+        this.refreshSettings();
+    }
+    
+    /*
+     * A headless widget on local tables for offline runs, with the values the robot and
+     * the save button would have put in them. A TableTrace can replay changes to them.
+     */
+    static KrunchCVWidget createOffline(String settingsFilename, LocalTable table, LocalTable preferences)
+    {
+        table.putNumber(headingKey, 0.0);
+        preferences.putBoolean(saveKey, false);
+        return new KrunchCVWidget(true, true, settingsFilename, table, preferences);
     }
     
     private void loadSettingsFile() throws Exception
     {
         try {
-            FileReader fr = new FileReader(DEFAULT_CSV_FILENAME);
+            FileReader fr = new FileReader(settingsFilename);
             BufferedReader br = new BufferedReader(fr);
             String buffer = "";
             while((buffer = br.readLine()) != null)
@@ -229,19 +395,19 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
                     }
 
                     // Change corresponding value
-                    keyMap.put(key, objValue);
+                    this.putSetting(key, objValue);
 
                     if(objValue.getClass() == Boolean.class)
                     {
-                        Robot.getTable().putBoolean(key, (Boolean)objValue);
+                        table.putBoolean(key, (Boolean)objValue);
                     }
                     else if(objValue.getClass() == String.class)
                     {
-                        Robot.getTable().putString(key, (String)objValue);
+                        table.putString(key, (String)objValue);
                     }
                     else if(objValue.getClass() == Double.class)
                     {
-                        Robot.getTable().putNumber(key, (Double)objValue);
+                        table.putNumber(key, (Double)objValue);
                     }
                 }
             }
@@ -250,7 +416,7 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
         } catch (FileNotFoundException ex) {
             try {
                 // Create new file and add default values
-                FileWriter fw = new FileWriter(DEFAULT_CSV_FILENAME);
+                FileWriter fw = new FileWriter(settingsFilename);
                 
                 // Iterate through all keys to generate new default file
                 Iterator i = keyMap.entrySet().iterator();
@@ -284,16 +450,16 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
                     {
                         if(keyMap.get(mapKey) != null)
                         {
-                            Robot.getTable().putBoolean(mapKey, (Boolean)keyMap.get(mapKey));
+                            table.putBoolean(mapKey, (Boolean)keyMap.get(mapKey));
                         }
                     }
                     else if(keyMap.get(mapKey).getClass() == String.class)
                     {
-                        Robot.getTable().putString(mapKey, (String)keyMap.get(mapKey));
+                        table.putString(mapKey, (String)keyMap.get(mapKey));
                     }
                     else if(keyMap.get(mapKey).getClass() == Double.class)
                     {
-                        Robot.getTable().putNumber(mapKey, (Double)keyMap.get(mapKey));
+                        table.putNumber(mapKey, (Double)keyMap.get(mapKey));
                     }
                 }
                 
@@ -311,32 +477,7 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
             public void run(){
                 try 
                 {
-                    // Create new file and add default values
-                    FileWriter fw = new FileWriter(DEFAULT_CSV_FILENAME);
-                    
-                    // Iterate through all keys and write current values to file
-                    Iterator i = keyMap.entrySet().iterator();
-                    while(i.hasNext())
-                    {
-                        Map.Entry<String, Object> entry = (Map.Entry<String, Object>) i.next();
-                        
-                        // Write values depending on the data type
-                        if(entry.getValue().getClass() == Boolean.class)
-                        {
-                            fw.write(entry.getKey() + ", " + Boolean.toString((Boolean)entry.getValue()) + s_lineSeparator);
-                        }
-                        else if(entry.getValue().getClass() == String.class)
-                        {
-                            fw.write(entry.getKey() + ", " + "\"" + (String)entry.getValue() + "\"" + s_lineSeparator);
-                        }
-                        else if(entry.getValue().getClass() == Double.class)
-                        {
-                            fw.write(entry.getKey() + ", " + Double.toString((Double)entry.getValue()) + s_lineSeparator);
-                        }
-                    }
-                    
-                    fw.flush();
-                    fw.close();
+                    writeSettingsFile(settingsFilename);
                 } 
                 catch (FileNotFoundException ex) 
                 {
@@ -348,7 +489,7 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
                 }
                 
                 // State the save is finished
-                Robot.getPreferences().putBoolean(saveKey, false);
+                preferences.putBoolean(saveKey, false);
                 saving = false;
               }
         };
@@ -357,27 +498,84 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
         saveThread.start();
     }
     
-    private void updateLocalSettings()
+    /* Writes every setting in keyMap to filename, in the format loadSettingsFile reads */
+    void writeSettingsFile(String filename) throws IOException
     {
-        // Assign Settings Values from SmartDashboard.
-        for(String mapKey : keyMap.keySet())
+        FileWriter fw = new FileWriter(filename);
+        
+        // Iterate through all keys and write current values to file
+        synchronized(keyMap)
         {
-            keyMap.put(mapKey, Robot.getTable().getNumber(mapKey));
-            
-            if(keyMap.get(mapKey).getClass() == Boolean.class)
+            Iterator i = keyMap.entrySet().iterator();
+            while(i.hasNext())
             {
-                if(keyMap.get(mapKey) != null)
+                Map.Entry<String, Object> entry = (Map.Entry<String, Object>) i.next();
+                
+                // Write values depending on the data type
+                if(entry.getValue().getClass() == Boolean.class)
                 {
-                    keyMap.put(mapKey, Robot.getTable().getBoolean(mapKey));
+                    fw.write(entry.getKey() + ", " + Boolean.toString((Boolean)entry.getValue()) + s_lineSeparator);
+                }
+                else if(entry.getValue().getClass() == String.class)
+                {
+                    fw.write(entry.getKey() + ", " + "\"" + (String)entry.getValue() + "\"" + s_lineSeparator);
+                }
+                else if(entry.getValue().getClass() == Double.class)
+                {
+                    fw.write(entry.getKey() + ", " + Double.toString((Double)entry.getValue()) + s_lineSeparator);
                 }
             }
-            else if(keyMap.get(mapKey).getClass() == String.class)
+        }
+        
+        fw.flush();
+        fw.close();
+    }
+    
+    /* Raw values of the settings the frame thread uses, indexed like VisionSettings.KEYS */
+    double[] getSettingValues()
+    {
+        synchronized(keyMap)
+        {
+            return settingValues.clone();
+        }
+    }
+    
+    /* Replaces the settings the frame thread uses and takes a new snapshot right away (for offline runs) */
+    void applySettingValues(double[] values)
+    {
+        for(int i = 0; i < VisionSettings.KEYS.length; i++)
+        {
+            this.putSetting(VisionSettings.KEYS[i], values[i]);
+        }
+        this.refreshSettings();
+    }
+    
+    /* Changes one value in keyMap, and in the values for the next settings snapshot if the frame thread uses it */
+    private void putSetting(String key, Object value)
+    {
+        synchronized(keyMap)
+        {
+            keyMap.put(key, value);
+            int index = VisionSettings.indexOf(key);
+            if(index >= 0 && value instanceof Double)
             {
-                keyMap.put(mapKey, Robot.getTable().getString(mapKey));
+                settingValues[index] = (Double)value;
+                settingsChanged.set(true);
             }
-            else if(keyMap.get(mapKey).getClass() == Double.class)
+        }
+    }
+    
+    /*
+     * Called once per frame. If any setting changed since the last frame, builds one
+     * new snapshot with all of the changes, however many there were.
+     */
+    private void refreshSettings()
+    {
+        if(settingsChanged.getAndSet(false))
+        {
+            synchronized(keyMap)
             {
-                keyMap.put(mapKey, Robot.getTable().getNumber(mapKey));
+                settings.set(new VisionSettings(settingValues));
             }
         }
     }
@@ -386,10 +584,15 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
     {
         // PROBABLY THE RIGHT WAY TO DO IT
         // Comment this out to do offsite testing
-        Robot.setHost(IP_PROPERTY.getValue());
-        Robot.setPort(PORT_PROPERTY.getValue());
-        Robot.setTeam(TEAM_NUMBER_PROPERTY.getValue());
-        Robot.getTable().addTableListener(this);
+        if(!m_localTables)
+        {
+            Robot.setHost(IP_PROPERTY.getValue());
+            Robot.setPort(PORT_PROPERTY.getValue());
+            Robot.setTeam(TEAM_NUMBER_PROPERTY.getValue());
+            table = Robot.getTable();
+            preferences = Robot.getPreferences();
+        }
+        table.addTableListener(this);
         
         // Setup Network table (MUST BE BEFORE LOAD CSV LOGIC)
 //        NetworkTable.setTeam(TEAM_NUMBER_PROPERTY.getValue());
@@ -400,14 +603,26 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
     @Override
     public WPIImage processImage(WPIColorImage rawImage)
     {
+        // The frame was captured the camera latency before it got here
+        long cameraLatencyNanos = (long)(CAMERA_LATENCY_PROPERTY.getValue() * 1000000.0);
+        long captureNanos = System.nanoTime() - cameraLatencyNanos;
+        long captureMillis = System.currentTimeMillis() - cameraLatencyNanos / 1000000;
+        long sequence = ++frameSequence;
         double heading = 0.0;
         
-        // Get the current heading of the robot first
-        if( !m_debugMode )
+        // Get the heading of the robot when the frame was captured
+        if( !m_debugMode || m_localTables )
         {
             try
             {
-                heading = Robot.getTable().getNumber("Heading");
+                if(headingHistory.isEmpty())
+                {
+                    heading = table.getNumber(headingKey); // Nothing recorded yet
+                }
+                else
+                {
+                    heading = headingHistory.headingAt(captureNanos);
+                }
             }
             catch( NoSuchElementException e)
             {
@@ -417,96 +632,232 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
             }
         }
 
-        // If size hasn't been initialized yet
-        if( size == null || size.width() != rawImage.getWidth() || size.height() != rawImage.getHeight() )
+        // Pick up settings changed since the last frame
+        this.refreshSettings();
+        
+        // The images that were on screen when their pipeline or renderer shut down were replaced by the last call
+        for(WPIColorImage image : retiredImages)
         {
-            size = opencv_core.cvSize(rawImage.getWidth(),rawImage.getHeight());
-            bin = IplImage.create(size, 8, 1); // Binary image container
-            hsv = IplImage.create(size, 8, 3); // CvSize, depth, number of channels
-            hue1 = IplImage.create(size, 8, 1);
-            hue2 = IplImage.create(size, 8, 1);
-            sat1 = IplImage.create(size, 8, 1);
-            sat2 = IplImage.create(size, 8, 1);
-            val1 = IplImage.create(size, 8, 1);
-            val2 = IplImage.create(size, 8, 1);
-            horizontalOffsetPixels =  (int)Math.round(kShooterOffsetDeg*(size.width()/kHorizontalFOVDeg));
-            
-            // Line points for line that goes down the middle of the image when outputed on the dashboard
-            linePt1 = new WPIPoint(size.width()/2+horizontalOffsetPixels,size.height()-1);
-            linePt2 = new WPIPoint(size.width()/2+horizontalOffsetPixels,0);
-            linePt3 = new WPIPoint(0, size.height()/2);
-            linePt4 = new WPIPoint(size.width(), size.height()/2);
+            image.dispose();
         }
-        // Get the raw IplImages for OpenCV
-        IplImage input = DaisyExtensions.getIplImage(rawImage);
+        retiredImages.clear();
 
-        // Convert to HSV color space
-        opencv_imgproc.cvCvtColor(input, hsv, opencv_imgproc.CV_BGR2HSV);
-        opencv_core.cvSplit(hsv, hue1, sat1, val1, null);       // Init to first IplImage
+        if(PIPELINED_PROPERTY.getValue())
+        {
+            return this.processImagePipelined(rawImage, heading, sequence, captureMillis, captureNanos);
+        }
+        else if(pipeline != null)
+        {
+            this.retire(pipeline.shutdown());
+            pipeline = null;
+        }
 
-        // Threshold each component separately
-        // Hue
-        // NOTE: Red is at the end of the color space, so you need to OR together
-        // a thresh and inverted thresh in order to get points that are red
-        
-        // INV is for the Upper thresholds. Note that THE ORDER YOU CALL THE FUNCTIONS MATTER
-        // because if you call INV second, you will overwrite the hue1 init image.
+        // If size hasn't been initialized yet (or only for the pipeline, which doesn't need the images)
+        if( bin == null || size.width() != rawImage.getWidth() || size.height() != rawImage.getHeight() )
+        {
+            this.allocateImages(rawImage.getWidth(), rawImage.getHeight());
+        }
+        // Get the raw IplImages for OpenCV
+        IplImage input = DaisyExtensions.getIplImage(rawImage);
+        long frameStartTime = System.nanoTime();
+        long stageStartTime = frameStartTime;
         
-        // Take input of hue1(init image), output of function to hue2(Output is a binary image)
-        opencv_imgproc.cvThreshold(hue1, hue2, (Double)keyMap.get(hueMaxKey), 255, opencv_imgproc.CV_THRESH_BINARY_INV);
-        opencv_imgproc.cvThreshold(hue1, hue1, (Double)keyMap.get(hueMinKey), 255, opencv_imgproc.CV_THRESH_BINARY);
-
-        // Saturation
-        opencv_imgproc.cvThreshold(sat1, sat2, (Double)keyMap.get(satMaxKey), 255, opencv_imgproc.CV_THRESH_BINARY_INV);
-        opencv_imgproc.cvThreshold(sat1, sat1, (Double)keyMap.get(satMinKey), 255, opencv_imgproc.CV_THRESH_BINARY);
+        // While tracking a target, only process the area it is predicted to be in
+        boolean roiTracking = ROI_TRACKING_PROPERTY.getValue();
+        boolean useRoi = roiTracking && roiTracker.predict(size.width(), size.height(), roi);
+        // (the coarse candidates are filtered for rectangular goals, so pyramid goals skip it)
+        if(!useRoi && coarseScale > 1 && COARSE_TO_FINE_PROPERTY.getValue() && !PYRAMID_GOALS_PROPERTY.getValue())
+        {
+            // Find candidates on a downscaled copy and only process those at full resolution
+            stageStartTime = this.findContoursCoarseToFine(input, stageStartTime);
+        }
+        else
+        {
+            if(useRoi)
+            {
+                opencv_core.cvSetZero(bin); // Only the region is thresholded, the rest would be an old frame's
+                opencv_core.cvSetImageROI(input, roi);
+                opencv_core.cvSetImageROI(hsv, roi);
+                opencv_core.cvSetImageROI(bin, roi);
+            }
 
-        // Value
-        opencv_imgproc.cvThreshold(val1, val2, (Double)keyMap.get(valMaxKey), 255, opencv_imgproc.CV_THRESH_BINARY_INV);
-        opencv_imgproc.cvThreshold(val1, val1, (Double)keyMap.get(valMinKey), 255, opencv_imgproc.CV_THRESH_BINARY);
+            // Convert to HSV color space
+            this.convertToHSV(input);
+            if(useRoi)
+            {
+                opencv_core.cvResetImageROI(input); // The overlay is drawn on the whole image
+            }
+            stageStartTime = this.markStage(STAGE_HSV, stageStartTime);
 
-        
-        // Combine the results to obtain our binary image which should for the most
-        // part only contain pixels that we care about (Bin is initialized with cvAnd of hue1 and hue2
-        // and then is bitwise anded incrementally with each new thresholded image
-          opencv_core.cvAnd(hue1, hue2, bin, null);
-          opencv_core.cvAnd(sat1, bin, bin, null);
-          opencv_core.cvAnd(sat2, bin, bin, null);
-          opencv_core.cvAnd(val1, bin, bin, null);
-          opencv_core.cvAnd(val2, bin, bin, null);
+            // Threshold all three components at once into bin
+            this.thresholdHSV();
+            stageStartTime = this.markStage(STAGE_THRESHOLD, stageStartTime);
 
-        // Uncomment the next two lines to see the raw binary image
+            // Uncomment the next two lines to see the raw binary image
 //        CanvasFrame result = new CanvasFrame("binary");
 //        cf.showImage(bin.getBufferedImage());
         
-        // Fill in any gaps using binary morphology
-        // Changing the 5th parameter changes the method, and changing the 6th parameter changes the number of iterations
-        // of the pixel extrapolation process.
-        opencv_imgproc.cvMorphologyEx(bin, bin, null, morphKernel, opencv_imgproc.CV_MOP_CLOSE, kHoleClosingIterations);
+            // Fill in any gaps using binary morphology
+            this.closeHoles();
+            stageStartTime = this.markStage(STAGE_CLOSE, stageStartTime);
 
-        // Uncomment the next two lines to see the image post-morphology
-        //CanvasFrame result2 = new CanvasFrame("morph");
+            // Uncomment the next two lines to see the image post-morphology
+            //CanvasFrame result2 = new CanvasFrame("morph");
 //        cf.showImage(bin.getBufferedImage());
 
-        // Find contours
-        WPIBinaryImage binWpi = DaisyExtensions.makeWPIBinaryImage(bin);
-        contours = DaisyExtensions.findConvexContours(binWpi);
+            // Find contours
+            this.findContours();
+            if(useRoi)
+            {
+                opencv_core.cvResetImageROI(hsv);
+                opencv_core.cvResetImageROI(bin);
+            }
+            stageStartTime = this.markStage(STAGE_CONTOURS, stageStartTime);
+        }
 
         // Process image for rectangular goals
-        this.processForRectangularGoals(rawImage, heading);
-
-        // Draw a crosshair (line down the middle)
-        rawImage.drawLine(linePt1, linePt2, alignedColor, 2);
+        this.processForRectangularGoals(heading);
+        this.markStage(STAGE_GOALS, stageStartTime);
         
-        // Draw horizontal line in the middle
-        rawImage.drawLine(linePt3, linePt4, alignedColor, 2);
+        if(roiTracking)
+        {
+            if(targetFound)
+            {
+                roiTracker.found(targetX, targetY, targetWidth, targetHeight);
+            }
+            else
+            {
+                roiTracker.lost();
+            }
+        }
 
-        DaisyExtensions.releaseMemory();
+        contourContext.releaseMemory();
+        this.markStage(STAGE_TOTAL, frameStartTime);
+        this.publishResult(sequence, captureMillis, System.nanoTime() - captureNanos);
+        this.recordFrame(input, bin);
+        
+        // The overlay is drawn after the result went out, so it doesn't add to the latency
+        WPIImage displayImage = this.renderOverlay(rawImage);
+        
+        if(LATENCY_DIAGNOSTICS_PROPERTY.getValue())
+        {
+            this.updateLatencyDiagnostics(DaisyExtensions.getIplImage(displayImage));
+        }
 
         //System.gc();
 
+        this.checkSaveButton();
+        
+        return displayImage;
+    }
+    
+    private WPIImage processImagePipelined(WPIColorImage rawImage, double heading, long sequence, long captureMillis,
+            long captureNanos)
+    {
+        // (Re)start the pipeline on the first frame and whenever the resolution changes
+        if(pipeline == null || !pipeline.matches(rawImage))
+        {
+            if(pipeline != null)
+            {
+                this.retire(pipeline.shutdown());
+            }
+            this.allocateImages(rawImage.getWidth(), rawImage.getHeight(), false); // The frame slots have their own
+            pipeline = new FramePipeline(this, rawImage);
+        }
+        
+        // The stages run on whole frames, the serial path's shortcuts don't fit in the pipeline
+        boolean ignored = ROI_TRACKING_PROPERTY.getValue() || COARSE_TO_FINE_PROPERTY.getValue();
+        if(ignored && !pipelineIgnoreWarned)
+        {
+            System.err.println("KrunchCV: " + roiTrackingKey + " and " + coarseToFineKey + " are ignored while "
+                    + pipelinedKey + " is on");
+        }
+        pipelineIgnoreWarned = ignored;
+        
+        FramePipeline.Frame finished = pipeline.submit(rawImage, heading, sequence, captureMillis, captureNanos);
+        
+        this.checkSaveButton();
+        
+        if(finished == null)
+        {
+            // Nothing made it through the pipeline yet
+            return rawImage;
+        }
+        
+        if(!finished.overlayDrawn)
+        {
+            // The detect thread only recorded the overlay, it is drawn here once per finished frame.
+            // The same frame is returned again until a newer one finishes, it is only counted once.
+            finished.overlayDrawn = true;
+            System.arraycopy(finished.stageNanos, 0, stageNanos, 0, stageNanos.length);
+            this.drawOverlay(finished.image, finished.overlay);
+            if(LATENCY_DIAGNOSTICS_PROPERTY.getValue())
+            {
+                this.updateLatencyDiagnostics(DaisyExtensions.getIplImage(finished.image));
+            }
+        }
+        return finished.image;
+    }
+    
+    /*
+     * Feeds the result of the frame to the target filter and sends both to the robot, if they
+     * changed enough since the last ones sent. latencyNanos is the time since capture, the
+     * heading was compensated for all of it.
+     */
+    void publishResult(long sequence, long captureMillis, long latencyNanos)
+    {
+        if(pyramidResult != pyramidFiltered)
+        {
+            // The goal type changed, the tracked target isn't the one being detected now
+            targetFilter.reset();
+            pyramidFiltered = pyramidResult;
+        }
+        targetFilter.update(System.nanoTime() - latencyNanos, targetFound, targetAzimuth, targetRange);
+        TargetResultPublisher.pack(resultRecord, sequence, captureMillis, latencyNanos / 1000000.0,
+                targetFound, targetAzimuth, targetRange, targetX, targetY, targetWidth, targetHeight, targetFilter);
+        if(m_debugMode && !m_localTables)
+        {
+            return;
+        }
+        resultPublisher.publish(table, resultRecord,
+                RESULT_AZIMUTH_EPSILON_PROPERTY.getValue(), RESULT_RANGE_EPSILON_PROPERTY.getValue());
+    }
+    
+    /*
+     * Hands the frame, its mask and the result from publishResult to the recorder while
+     * RECORD_FRAMES_PROPERTY is set. Must be called before the overlay is drawn on input.
+     */
+    void recordFrame(IplImage input, IplImage bin)
+    {
+        if(!RECORD_FRAMES_PROPERTY.getValue())
+        {
+            if(recorder != null)
+            {
+                recorder.shutdown();
+                recorder = null;
+            }
+            return;
+        }
+        
+        if(recorder == null)
+        {
+            recorder = new FrameRecorder(new File(RECORDING_DIRECTORY_PROPERTY.getValue()),
+                    RECORDING_MAX_MB_PROPERTY.getValue() * 1024L * 1024L);
+        }
+        FrameRecorder.Record record = recorder.acquire();
+        if(record != null) // Otherwise the writer is behind and the frame is dropped
+        {
+            record.copyImages(input, bin);
+            System.arraycopy(resultRecord, 0, record.result, 0, resultRecord.length);
+            recorder.submit(record);
+        }
+    }
+    
+    private void checkSaveButton()
+    {
         // Look to see if button was pressed to save settings
         try{
-            if(Robot.getPreferences().getBoolean(saveKey) && !saving){
+            if(preferences.getBoolean(saveKey) && !saving){
                 this.saveSettingsFile();
                 saving = true;
             }
@@ -517,160 +868,618 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
         catch( IllegalArgumentException e )
         {
         }
-        
-        return rawImage;
     }
     
-    private void processForRectangularGoals(WPIColorImage rawImage, double heading) 
+    private long markStage(int stage, long startTime)
     {
-        rectGoalPolygons = new ArrayList<WPIPolygon>();
-        Double minWidthPixels = (Double)keyMap.get(minWidthRectGoalsKey);
-        Double maxWidthPixels = (Double)keyMap.get(maxWidthRectGoalsKey);
+        long now = System.nanoTime();
+        stageNanos[stage] = now - startTime;
+        return now;
+    }
+    
+    private void updateLatencyDiagnostics(IplImage input)
+    {
+        long now = System.nanoTime();
+        latencyStats.record(stageNanos, now);
         
-        for (WPIContour c : contours)
+        // Statistics are only recomputed and published every kDiagnosticsIntervalNanos
+        if(latencyStats.refresh(now, kDiagnosticsIntervalNanos))
         {
-            double ratio = ((double) c.getHeight()) / ((double) c.getWidth());
-            if (ratio < 0.5 && ratio > 0.05 && c.getWidth() > minWidthPixels && c.getWidth() < maxWidthPixels)
+            if(!m_debugMode || m_localTables)
             {
-                rectGoalPolygons.add(c.approxPolygon(20));
+                ITable diagnosticsTable = table.getSubTable(DIAGNOSTICS_TABLE_NAME);
+                latencyStats.publish(diagnosticsTable);
+                diagnosticsTable.putNumber("roi fraction", roiTracker.getRoiFraction());
+                diagnosticsTable.putNumber("native images", DaisyExtensions.getLiveImageCount());
+                diagnosticsTable.putNumber("native image MB", DaisyExtensions.getLiveImageBytes() / 1048576.0);
+                diagnosticsTable.putNumber("contour storage KB", DaisyExtensions.getStorageBytes() / 1024.0);
             }
+            latencyHudText = String.format("%.1f fps  p50 %.1f  p95 %.1f  max %.1f ms",
+                    latencyStats.getFramesPerSecond(), latencyStats.getP50Ms(STAGE_TOTAL),
+                    latencyStats.getP95Ms(STAGE_TOTAL), latencyStats.getMaxMs(STAGE_TOTAL));
         }
         
-        WPIPolygon square = null;
-        int highest = Integer.MAX_VALUE;
+        if(LATENCY_HUD_PROPERTY.getValue() && latencyHudText != null)
+        {
+            opencv_core.cvPutText(input, latencyHudText, hudOrigin, hudFont, CvScalar.YELLOW);
+        }
+    }
+    
+    /* Results of the last frame, for running without a robot (see BatchReplayRunner) */
+    boolean isTargetFound()
+    {
+        return targetFound;
+    }
+    
+    double getTargetAzimuth()
+    {
+        return targetAzimuth;
+    }
+    
+    double getTargetRange()
+    {
+        return targetRange;
+    }
+    
+    /* Pixel box of the last target */
+    int getTargetX()
+    {
+        return targetX;
+    }
+    
+    int getTargetY()
+    {
+        return targetY;
+    }
+    
+    int getTargetWidth()
+    {
+        return targetWidth;
+    }
+    
+    int getTargetHeight()
+    {
+        return targetHeight;
+    }
+    
+    TargetFilter getTargetFilter()
+    {
+        return targetFilter;
+    }
+    
+    double getRoiFraction()
+    {
+        return roiTracker.getRoiFraction();
+    }
+    
+    long getStageNanos(int stage)
+    {
+        return stageNanos[stage];
+    }
+    
+    /* The stages of processImage are split out below so they can be run and timed
+     * one at a time (see VisionBenchmark). They must be called in this order. */
+    void allocateImages(int width, int height)
+    {
+        this.allocateImages(width, height, true);
+    }
+    
+    /* Without serialImages only the size is set up, for pipelined processing (see FramePipeline) */
+    private void allocateImages(int width, int height, boolean serialImages)
+    {
+        boolean resized = (size != null && (size.width() != width || size.height() != height));
+        size = opencv_core.cvSize(width, height);
+        
+        // Images come from the DaisyExtensions pool, so the old ones are handed back first
+        DaisyExtensions.releaseImage(bin);
+        DaisyExtensions.releaseImage(hsv);
+        DaisyExtensions.releaseImage(coarseInput);
+        DaisyExtensions.releaseImage(coarseHsv);
+        DaisyExtensions.releaseImage(coarseBin);
+        bin = hsv = coarseInput = coarseHsv = coarseBin = null;
+        if(resized)
+        {
+            // The pooled images of the old size won't be used again, free them instead of keeping
+            // them around for the rest of the event (the pipeline's were handed back by its shutdown)
+            DaisyExtensions.trimImagePool();
+        }
+        if(serialImages)
+        {
+            bin = DaisyExtensions.acquireImage(width, height, 8, 1); // Binary image container
+            hsv = DaisyExtensions.acquireImage(width, height, 8, 3); // Width, height, depth, number of channels
+        }
+        horizontalOffsetPixels =  (int)Math.round(kShooterOffsetDeg*(size.width()/kHorizontalFOVDeg));
 
-        for (WPIPolygon p : rectGoalPolygons)
+        // Line points for line that goes down the middle of the image when outputed on the dashboard
+        linePt1 = new WPIPoint(size.width()/2+horizontalOffsetPixels,size.height()-1);
+        linePt3 = new WPIPoint(0, size.height()/2);
+        
+        // The coarse level is about kCoarseWidth wide, at 160x120 and below there is nothing to gain
+        coarseScale = Math.max(1, width / kCoarseWidth);
+        coarseClosingIterations = Math.max(1, Math.round((float)kHoleClosingIterations / coarseScale));
+        if(serialImages && coarseScale > 1)
+        {
+            coarseInput = DaisyExtensions.acquireImage(width / coarseScale, height / coarseScale, 8, 3);
+            coarseHsv = DaisyExtensions.acquireImage(width / coarseScale, height / coarseScale, 8, 3);
+            coarseBin = DaisyExtensions.acquireImage(width / coarseScale, height / coarseScale, 8, 1);
+        }
+    }
+    
+    private long findContoursCoarseToFine(IplImage input, long stageStartTime)
+    {
+        // Coarse level: threshold and close the downscaled image
+        // (the stage times are for the coarse level, refining is part of the contour stage)
+        opencv_imgproc.cvResize(input, coarseInput, opencv_imgproc.CV_INTER_AREA);
+        this.convertToHSV(coarseInput, coarseHsv);
+        stageStartTime = this.markStage(STAGE_HSV, stageStartTime);
+        this.thresholdHSV(coarseHsv, coarseBin);
+        stageStartTime = this.markStage(STAGE_THRESHOLD, stageStartTime);
+        opencv_imgproc.cvMorphologyEx(coarseBin, coarseBin, null, morphKernel, opencv_imgproc.CV_MOP_CLOSE, coarseClosingIterations);
+        stageStartTime = this.markStage(STAGE_CLOSE, stageStartTime);
+        
+        // Widths from the dashboard are full resolution pixels, so scale them down to the coarse level
+        VisionSettings current = settings.get();
+        coarseFilter.minWidth = current.minWidthRectGoals / coarseScale - 1;
+        coarseFilter.maxWidth = current.maxWidthRectGoals / coarseScale + 1;
+        WPIContour[] coarseContours = contourContext.findConvexContours(coarseBin, 0, 0, coarseFilter);
+        
+        // Scale the candidates back up to full resolution with enough margin for the hole closing
+        int margin = kHoleClosingIterations + 2 * coarseScale;
+        if (coarseBoxes.length < 4 * coarseContours.length)
+        {
+            coarseBoxes = new int[4 * coarseContours.length];
+        }
+        coarseBoxCount = 0;
+        for (WPIContour c : coarseContours)
+        {
+            int b = 4 * coarseBoxCount++;
+            coarseBoxes[b] = Math.max(0, c.getX() * coarseScale - margin);
+            coarseBoxes[b + 1] = Math.max(0, c.getY() * coarseScale - margin);
+            coarseBoxes[b + 2] = Math.min(size.width(), (c.getX() + c.getWidth()) * coarseScale + margin);
+            coarseBoxes[b + 3] = Math.min(size.height(), (c.getY() + c.getHeight()) * coarseScale + margin);
+        }
+        this.mergeCoarseBoxes();
+        
+        // Fine level: process only the candidates at full resolution. The rest of bin is cleared
+        // so the displayed and recorded mask isn't left over from an earlier frame.
+        opencv_core.cvSetZero(bin);
+        fineContours.clear();
+        boolean blobLabeling = BLOB_LABELING_PROPERTY.getValue();
+        blobLabeler.clear();
+        for (int b = 0; b < 4 * coarseBoxCount; b += 4)
         {
-            if (p.isConvex() && p.getNumVertices() == 4)
+            roi.x(coarseBoxes[b]).y(coarseBoxes[b + 1]);
+            roi.width(coarseBoxes[b + 2] - coarseBoxes[b]).height(coarseBoxes[b + 3] - coarseBoxes[b + 1]);
+            opencv_core.cvSetImageROI(input, roi);
+            opencv_core.cvSetImageROI(hsv, roi);
+            opencv_core.cvSetImageROI(bin, roi);
+            this.convertToHSV(input);
+            this.thresholdHSV();
+            this.closeHoles();
+            if(blobLabeling)
             {
-                // We passed the first test...we fit a rectangle to the polygon
-                // Now do some more tests
-
-                WPIPoint[] points = p.getPoints();
-                // We expect to see a top line that is nearly horizontal, and two side lines that are nearly vertical
-                int numNearlyHorizontal = 0;
-                int numNearlyVertical = 0;
-                for( int i = 0; i < 4; i++ )
+                blobLabeler.label(bin); // Adds to the blobs of the other candidates
+            }
+            else
+            {
+                this.findContours();
+                for (WPIContour c : contours)
                 {
-                    double dy = points[i].getY() - points[(i+1) % 4].getY(); // Change in Y from one point to the next
-                    double dx = points[i].getX() - points[(i+1) % 4].getX(); // Change in X from one point to the next
-                    double slope = Double.MAX_VALUE;
-                    // If slope not 0, in other words not perfectly horizontal
-                    if( dx != 0 ) 
-                    {
-                        // Find slope of line
-                        slope = Math.abs(dy/dx);
-                    } 
-
-                    // Increment number of horizontal or vertical sides depending on if the slope is
-                    // closer to being horizontal or if the slope is closer to being verticle.
-                    if( slope < kNearlyHorizontalSlope )
-                    {
-                        ++numNearlyHorizontal;
-                    }
-                    else if( slope > kNearlyVerticalSlope )
-                    {
-                        ++numNearlyVertical;
-                    }
+                    fineContours.add(c);
                 }
-
-                // Since we assume the top line is horizontal, the funciton only requires that
-                // we have 1 nearly horizontal side and 2 nearly verticle sides to consider it
-                // a target.
-                if(numNearlyHorizontal >= 1 && numNearlyVertical == 2)
+            }
+            opencv_core.cvResetImageROI(input);
+            opencv_core.cvResetImageROI(hsv);
+            opencv_core.cvResetImageROI(bin);
+        }
+        contours = fineContours.toArray(new WPIContour[fineContours.size()]);
+        
+        return this.markStage(STAGE_CONTOURS, stageStartTime);
+    }
+    
+    /* Merges overlapping coarse boxes so no part of the image is contoured twice. The boxes are
+     * sorted by their left edge and swept, a box is only compared to the ones that start before
+     * it ends. A merged box can grow into boxes of the earlier part of the sweep, so the sweep is
+     * repeated until nothing merges. */
+    private void mergeCoarseBoxes()
+    {
+        int[] boxes = coarseBoxes;
+        boolean merged = true;
+        while (merged)
+        {
+            merged = false;
+            
+            // Insertion sort by left edge, there are only a handful of candidates
+            for (int i = 4; i < 4 * coarseBoxCount; i += 4)
+            {
+                int x0 = boxes[i], y0 = boxes[i + 1], x1 = boxes[i + 2], y1 = boxes[i + 3];
+                int j = i - 4;
+                for (; j >= 0 && boxes[j] > x0; j -= 4)
                 {
-                    // Draw a polygon overlay on the image
-                    rawImage.drawPolygon(p, WPIColor.BLUE, 2);
-
-                    // Get center of polygon
-                    int pCenterX = (p.getX() + (p.getWidth() / 2));
-                    int pCenterY = (p.getY() + (p.getHeight() / 2));
-
-                    // Draw a large point emphasizing the center of the polygon
-                    rawImage.drawPoint(new WPIPoint(pCenterX, pCenterY), centerPointColor, 5);
-                    
-                    // Picks the highest target
-                    // The origin of the coordinate system is at the top-left of the image,
-                    // which is why the comparison is less than. The height values get smaller
-                    // when they are higher up in reality.
-                    if (pCenterY < highest) // Because coord system is funny
+                    System.arraycopy(boxes, j, boxes, j + 4, 4);
+                }
+                boxes[j + 4] = x0;
+                boxes[j + 5] = y0;
+                boxes[j + 6] = x1;
+                boxes[j + 7] = y1;
+            }
+            
+            // Sweep, a merged box keeps its place (its left edge doesn't change) and the other one is dropped
+            int kept = 0;
+            for (int i = 0; i < 4 * coarseBoxCount; i += 4)
+            {
+                if (boxes[i + 2] <= boxes[i]) // Dropped by an earlier merge
+                {
+                    continue;
+                }
+                for (int j = i + 4; j < 4 * coarseBoxCount && boxes[j] < boxes[i + 2]; j += 4)
+                {
+                    if (boxes[j + 2] > boxes[j] && boxes[j + 1] < boxes[i + 3] && boxes[i + 1] < boxes[j + 3])
                     {
-                        square = p;
-                        highest = pCenterY;
+                        boxes[i + 1] = Math.min(boxes[i + 1], boxes[j + 1]);
+                        boxes[i + 2] = Math.max(boxes[i + 2], boxes[j + 2]);
+                        boxes[i + 3] = Math.max(boxes[i + 3], boxes[j + 3]);
+                        boxes[j + 2] = boxes[j]; // Empty, dropped below
+                        merged = true;
                     }
                 }
+                System.arraycopy(boxes, i, boxes, kept, 4);
+                kept += 4;
             }
-            else
+            coarseBoxCount = kept / 4;
+        }
+    }
+    
+    void convertToHSV(IplImage input)
+    {
+        this.convertToHSV(input, hsv);
+    }
+    
+    void thresholdHSV()
+    {
+        this.thresholdHSV(hsv, bin);
+    }
+    
+    void closeHoles()
+    {
+        this.closeHoles(bin);
+    }
+    
+    void findContours()
+    {
+        this.findContours(bin);
+    }
+    
+    void labelBlobs()
+    {
+        this.labelBlobs(bin);
+    }
+    
+    /* Versions of the stages that work on the caller's images (see FramePipeline) */
+    void convertToHSV(IplImage input, IplImage hsv)
+    {
+        opencv_imgproc.cvCvtColor(input, hsv, opencv_imgproc.CV_BGR2HSV);
+    }
+    
+    void thresholdHSV(IplImage hsv, IplImage bin)
+    {
+        // NOTE: This used to be six cvThresholds (BINARY for the MIN values, BINARY_INV
+        // for the MAX values) that were anded together, which keeps MIN < value <= MAX.
+        // cvInRangeS keeps lower <= value <= upper, so the lower bounds are shifted up by one.
+        // A hue range where MIN > MAX (red wrapping around the end of the color space)
+        // still comes out as an empty image, just like the anded thresholds did.
+        setRangeBounds(settings.get(), hsvLower, hsvUpper);
+        opencv_core.cvInRangeS(hsv, hsvLower, hsvUpper, bin);
+    }
+    
+    void closeHoles(IplImage bin)
+    {
+        // Changing the 5th parameter changes the method, and changing the 6th parameter changes the number of iterations
+        // of the pixel extrapolation process.
+        // Hollow target detection needs the holes to stay open, so it only does a light cleanup pass.
+        int iterations = HOLLOW_TARGETS_PROPERTY.getValue() ? kHollowCleanupIterations : kHoleClosingIterations;
+        opencv_imgproc.cvMorphologyEx(bin, bin, null, morphKernel, opencv_imgproc.CV_MOP_CLOSE, iterations);
+    }
+    
+    /* Only keeps contours that could be rectangular goals (same tests as processForRectangularGoals) */
+    void findContours(IplImage bin)
+    {
+        if(PYRAMID_GOALS_PROPERTY.getValue())
+        {
+            this.findContours(bin, null); // Pyramid goals are sorted out in processForPyramidGoals
+            return;
+        }
+        if(BLOB_LABELING_PROPERTY.getValue())
+        {
+            this.labelBlobs(bin);
+            return;
+        }
+        VisionSettings current = settings.get();
+        rectGoalFilter.minWidth = current.minWidthRectGoals;
+        rectGoalFilter.maxWidth = current.maxWidthRectGoals;
+        if(HOLLOW_TARGETS_PROPERTY.getValue())
+        {
+            contours = contourContext.findHollowConvexContours(bin, 0, 0, rectGoalFilter, kMinHoleFraction);
+        }
+        else
+        {
+            this.findContours(bin, rectGoalFilter);
+        }
+    }
+    
+    /* Finds blobs for processBlobsForRectangularGoals, instead of contours */
+    void labelBlobs(IplImage bin)
+    {
+        blobLabeler.clear();
+        blobLabeler.label(bin);
+    }
+    
+    /* Keeps every contour, for processForPyramidGoals */
+    void findAllContours()
+    {
+        this.findContours(bin, null);
+    }
+    
+    private void findContours(IplImage bin, DaisyExtensions.ContourFilter filter)
+    {
+        // If bin has a region of interest, the contours are moved back to full image coordinates
+        contours = contourContext.findConvexContours(bin, 0, 0, filter);
+    }
+    
+    /* Frees the contours of the frame, once the goals have been found */
+    void releaseContourMemory()
+    {
+        contourContext.releaseMemory();
+    }
+    
+    /* Copies what the last frame found into overlay, so it can be drawn later or on another thread */
+    void captureOverlay(Overlay overlay)
+    {
+        overlay.candidates.copyFrom(quads);
+        overlay.target = targetFound ? targetCandidate : -1;
+        overlay.pyramidHorizontal = targetFound ? targetPyramidHorizontal : -1;
+        overlay.pyramidVertical = targetFound ? targetPyramidVertical : -1;
+        overlay.aligned = targetAligned;
+        overlay.crosshairX = linePt1.getX();
+        overlay.crosshairY = linePt3.getY();
+        overlay.width = size.width();
+        overlay.height = size.height();
+    }
+    
+    /* Draws overlay on image as OVERLAY_PROPERTY says, the renderer thread mode draws in place here */
+    void drawOverlay(WPIColorImage image, Overlay overlay)
+    {
+        int mode = this.getOverlayMode();
+        if(mode != OVERLAY_OFF)
+        {
+            overlay.draw(image, mode == OVERLAY_TARGET_ONLY);
+        }
+    }
+    
+    /* Draws the overlay of the last frame on rawImage, or hands it to the renderer thread, and returns the image to show */
+    private WPIImage renderOverlay(WPIColorImage rawImage)
+    {
+        int mode = this.getOverlayMode();
+        if(mode != OVERLAY_RENDERER_THREAD && overlayRenderer != null)
+        {
+            this.retire(overlayRenderer.shutdown());
+            overlayRenderer = null;
+        }
+        if(mode == OVERLAY_OFF)
+        {
+            return rawImage;
+        }
+        
+        this.captureOverlay(overlay);
+        if(mode != OVERLAY_RENDERER_THREAD)
+        {
+            overlay.draw(rawImage, mode == OVERLAY_TARGET_ONLY);
+            return rawImage;
+        }
+        
+        // (Re)start the renderer on the first frame and whenever the resolution changes
+        if(overlayRenderer == null || !overlayRenderer.matches(rawImage))
+        {
+            if(overlayRenderer != null)
+            {
+                this.retire(overlayRenderer.shutdown());
+            }
+            overlayRenderer = new OverlayRenderer(rawImage);
+        }
+        WPIColorImage drawn = overlayRenderer.submit(rawImage, overlay, false);
+        return (drawn != null) ? drawn : rawImage;
+    }
+    
+    /* Keeps an image that may still be on screen until the next frame, see processImage */
+    private void retire(WPIColorImage image)
+    {
+        if(image != null)
+        {
+            retiredImages.add(image);
+        }
+    }
+    
+    private int getOverlayMode()
+    {
+        Object mode = OVERLAY_PROPERTY.getValue();
+        return (mode instanceof Integer) ? (Integer) mode : OVERLAY_FULL;
+    }
+    
+    void processForRectangularGoals(double heading) 
+    {
+        if(PYRAMID_GOALS_PROPERTY.getValue())
+        {
+            this.processForPyramidGoals(heading);
+            return;
+        }
+        if(BLOB_LABELING_PROPERTY.getValue())
+        {
+            this.processBlobsForRectangularGoals(heading);
+            return;
+        }
+        
+        pyramidResult = false;
+        VisionSettings current = settings.get();
+        quads.classify(contours, contourContext, current.minWidthRectGoals, current.maxWidthRectGoals);
+        
+        int square = -1;
+        int highest = Integer.MAX_VALUE;
+
+        for (int q = 0; q < quads.getCount(); q++)
+        {
+            if (quads.getType(q) != QuadClassifier.RECT_GOAL)
+            {
+                continue;
+            }
+            // We fit a rectangle to the polygon, it also has to have rectangular sides
+            if (!quads.hasRectangularSides(q))
             {
                 // Not an acceptable target
-                rawImage.drawPolygon(p, WPIColor.YELLOW, 1);
+                quads.setStatus(q, QuadClassifier.REJECTED);
+                continue;
+            }
+            quads.setStatus(q, QuadClassifier.ACCEPTED);
+
+            // Get center of polygon
+            int pCenterY = (quads.getY(q) + (quads.getHeight(q) / 2));
+
+            // Picks the highest target
+            // The origin of the coordinate system is at the top-left of the image,
+            // which is why the comparison is less than. The height values get smaller
+            // when they are higher up in reality.
+            if (pCenterY < highest) // Because coord system is funny
+            {
+                square = q;
+                highest = pCenterY;
             }
         }
 
         // If a target has been found
-        if (square != null)
+        if (square >= 0)
         {
-            double x = square.getX() + (square.getWidth() / 2);
-            x = (2 * (x / size.width())) - 1;
-            double y = square.getY() + (square.getHeight() / 2);
-            y = -((2 * (y / size.height())) - 1);
-
-            double topTargetHeightInches = (Double)keyMap.get(topTargetHeightInchesKey);
-            double cameraHeightInches = (Double)keyMap.get(cameraHeightInchesKey);
-            double cameraPitchDeg = (shooterTilted ? (Double)keyMap.get(cameraPitchDegHighKey) : (Double)keyMap.get(cameraPitchDegLowKey));
-            
-            // Find azimuth (horizontal degrees needed to line up with target). This is given as -180 being completely left,
-            // +180 being completely right, and 0 being completely lined up.
-            double azimuth = this.boundAngle0to180DegreesWithDirection(x*kHorizontalFOVDeg/2.0 + heading - kShooterOffsetDeg);
-            double range = (topTargetHeightInches - cameraHeightInches)
-                    / Math.tan((y*kVerticalFOVDeg/2.0 + cameraPitchDeg)*Math.PI/180.0);
-
-            if (!m_debugMode)
-            {
-                // Outputs values to the dashboard
-                Robot.getTable().putBoolean("found", true);
-                Robot.getTable().putNumber("azimuth", azimuth);
-                Robot.getTable().putNumber("range", range);
-            } else
-            {
-                System.out.println("Target found");
-                System.out.println("x: " + x);
-                System.out.println("y: " + y);
-                System.out.println("azimuth: " + azimuth);
-                System.out.println("range: " + range);
+            this.reportTarget(current, heading, quads.getX(square), quads.getY(square),
+                    quads.getWidth(square), quads.getHeight(square));
+            targetCandidate = square;
+        } else
+        {
+            this.reportNoTarget();
+        }
+    }
+    
+    /* Same as processForRectangularGoals, on the blobs from labelBlobs */
+    void processBlobsForRectangularGoals(double heading)
+    {
+        pyramidResult = false;
+        VisionSettings current = settings.get();
+        
+        int square = -1;
+        int highest = Integer.MAX_VALUE;
+        
+        quads.clear();
+        for (int b = 0; b < blobLabeler.getCount(); b++)
+        {
+            // The extreme points stand in for the four vertices of the approximated polygon
+            int q = quads.addBlob(blobLabeler, b, current.minWidthRectGoals, current.maxWidthRectGoals);
+            if (q < 0)
+            {
+                continue;
             }
             
-            // Draw outline around highest goal
-            double goalAlignTolerance = (Double)keyMap.get(goalAlignToleranceKey);
-            double centerX = square.getX() + square.getWidth()/2;
-            double centerY = square.getY() + square.getHeight()/2;
-            if(centerX >= linePt1.getX()-goalAlignTolerance && centerX <= linePt1.getX()+goalAlignTolerance
-                    && centerY >= linePt3.getY()-goalAlignTolerance && centerY <= linePt3.getY()+goalAlignTolerance)
+            // A blob that doesn't fill the quadrilateral isn't a (filled in) rectangle
+            if (blobLabeler.getArea(b) < kMinBlobFillRatio * quads.getArea(q) || !quads.hasRectangularSides(q))
             {
-                // Draw Aligned Outline
-                rawImage.drawPolygon(square, alignedColor, 7);
+                // Not an acceptable target
+                quads.setStatus(q, QuadClassifier.REJECTED);
+                continue;
             }
-            else
+            quads.setStatus(q, QuadClassifier.ACCEPTED);
+            
+            // Picks the highest target
+            int pCenterY = quads.getY(q) + quads.getHeight(q) / 2;
+            if (pCenterY < highest)
             {
-                // Draw Unaligned Outline
-                rawImage.drawPolygon(square, unalignedColor, 7);
+                square = q;
+                highest = pCenterY;
             }
-            
+        }
+        
+        if (square >= 0)
+        {
+            this.reportTarget(current, heading, quads.getX(square), quads.getY(square),
+                    quads.getWidth(square), quads.getHeight(square));
+            targetCandidate = square;
         } else
         {
+            this.reportNoTarget();
+        }
+    }
+    
+    /*
+     * Works out the azimuth and range of the target with the given bounding box and
+     * stores them for publishResult, along with whether the camera is aligned with it.
+     */
+    private void reportTarget(VisionSettings current, double heading, int boxX, int boxY, int boxWidth, int boxHeight)
+    {
+        this.reportTarget(current, heading, current.topTargetHeightInches, boxX + boxWidth/2, boxY + boxHeight/2,
+                boxX, boxY, boxWidth, boxHeight);
+    }
+    
+    /* Same, for a target whose aim point (centerX, centerY) isn't the middle of its box */
+    private void reportTarget(VisionSettings current, double heading, double targetHeightInches,
+            double centerX, double centerY, int boxX, int boxY, int boxWidth, int boxHeight)
+    {
+        double x = (2 * (centerX / size.width())) - 1;
+        double y = -((2 * (centerY / size.height())) - 1);
 
-            if (!m_debugMode)
-            {
-                Robot.getTable().putBoolean("found", false);
-            } else
-            {
-                System.out.println("Target not found");
-            }
+        double cameraHeightInches = current.cameraHeightInches;
+        double cameraPitchDeg = (shooterTilted ? current.cameraPitchDegHigh : current.cameraPitchDegLow);
+        
+        // Find azimuth (horizontal degrees needed to line up with target). This is given as -180 being completely left,
+        // +180 being completely right, and 0 being completely lined up.
+        double azimuth = this.boundAngle0to180DegreesWithDirection(x*kHorizontalFOVDeg/2.0 + heading - kShooterOffsetDeg);
+        double range = (targetHeightInches - cameraHeightInches)
+                / Math.tan((y*kVerticalFOVDeg/2.0 + cameraPitchDeg)*Math.PI/180.0);
+        
+        targetFound = true;
+        targetCandidate = targetPyramidHorizontal = targetPyramidVertical = -1; // Set by the caller
+        targetAzimuth = azimuth;
+        targetRange = range;
+        targetX = boxX;
+        targetY = boxY;
+        targetWidth = boxWidth;
+        targetHeight = boxHeight;
+
+        // The values go to the robot all at once from publishResult
+        if (m_debugMode && !m_headless)
+        {
+            System.out.println("Target found");
+            System.out.println("x: " + x);
+            System.out.println("y: " + y);
+            System.out.println("azimuth: " + azimuth);
+            System.out.println("range: " + range);
+        }
+        
+        // Aligned when the center of the goal is within tolerance of the crosshair
+        double goalAlignTolerance = current.goalAlignTolerance;
+        targetAligned = centerX >= linePt1.getX()-goalAlignTolerance && centerX <= linePt1.getX()+goalAlignTolerance
+                && centerY >= linePt3.getY()-goalAlignTolerance && centerY <= linePt3.getY()+goalAlignTolerance;
+    }
+    
+    private void reportNoTarget()
+    {
+        targetFound = false;
+        targetAligned = false;
+        targetCandidate = targetPyramidHorizontal = targetPyramidVertical = -1;
+
+        if (m_debugMode && !m_headless)
+        {
+            System.out.println("Target not found");
         }
     }
 
-    private void processForPyramidGoals(WPIColorImage rawImage, double heading)
+    void processForPyramidGoals(double heading)
     {
+        pyramidResult = true;
         // First we find the two rectangles, then we find the two closest
         // to each other, then we find the points to make a triangle, then
         // we find the centroid of the imaginary triangle.
@@ -679,150 +1488,74 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
         // ARE PROBABLY NOT THE RIGHT ONES SINCE THEY DO NOT REPRESENT
         // THE SMALL RECTANGULAR TARGETS
         
-        // Categorize polygons as either horizontal or vertical pyramid polygons
-        pyramidGoalHPolygons = new ArrayList<WPIPolygon>();
-        pyramidGoalVPolygons = new ArrayList<WPIPolygon>();
-        for (WPIContour c : contours)
+        // Categorize contours as either horizontal or vertical pyramid rects
+        // (horizontal ones are wider than tall, vertical ones taller than wide)
+        VisionSettings current = settings.get();
+        quads.classify(contours, contourContext, current.minWidthRectGoals, current.maxWidthRectGoals);
+        for (int q = 0; q < quads.getCount(); q++)
         {
-            double ratio = ((double) c.getHeight()) / ((double) c.getWidth());
-            if (ratio < 1.0 && ratio > 0.5 && c.getWidth() > kMinWidthPyramidHGoals && c.getWidth() < kMaxWidthPyramidHGoals)
-            {
-                pyramidGoalHPolygons.add(c.approxPolygon(20));
-            }
-            else if(ratio < 1.0 && ratio > 0.5 && c.getWidth() > kMinWidthPyramidVGoals && c.getWidth() < kMaxWidthPyramidVGoals)
+            if (quads.getType(q) == QuadClassifier.RECT_GOAL)
             {
-                pyramidGoalVPolygons.add(c.approxPolygon(20));
+                continue;
             }
+            // We expect to see a top line that is nearly horizontal, and two side lines that are nearly vertical
+            quads.setStatus(q, quads.hasRectangularSides(q) ? QuadClassifier.ACCEPTED : QuadClassifier.REJECTED);
         }
-
-        // Look for horizontal pyramid goal rects
-        horizontalPyramidRects = new ArrayList<HorizontalPyramidRect>(); // Stores all valid horizontal pyramid rects and their values
-        for (WPIPolygon p : pyramidGoalHPolygons)
+        
+        // Find horizontal and vertical rects that are closest to each other in proportion to their size
+        // The proportion makes it so that farther away goals that appear smaller in the image don't get
+        // priority when looking for correct goals.
+        if (pyramidPairer.pair(quads))
         {
-            if (p.isConvex() && p.getNumVertices() == 4)
+            int h = pyramidPairer.getHorizontal();
+            int v = pyramidPairer.getVertical();
+            
+            // The ends of the horizontal rect and the top of the vertical one make the triangle
+            // (the Y values of the ends are the middle of the rect, not the top or bottom)
+            int leftX = PyramidPairer.leftX(quads, h);
+            int rightX = PyramidPairer.rightX(quads, h);
+            int sideY = PyramidPairer.sideY(quads, h);
+            int topX = PyramidPairer.topX(quads, v);
+            int topY = PyramidPairer.topY(quads, v);
+            double centroidX = (leftX + rightX + topX) / 3.0;
+            double centroidY = (sideY + sideY + topY) / 3.0;
+            
+            // The box goes around the triangle, for ROI tracking and the robot
+            int boxX = Math.min(leftX, topX);
+            int boxY = Math.min(sideY, topY);
+            int boxWidth = Math.max(rightX, topX) - boxX;
+            int boxHeight = Math.max(sideY, topY) - boxY;
+            
+            this.reportTarget(current, heading, current.pyramidTargetHeightInches,
+                    centroidX, centroidY, boxX, boxY, boxWidth, boxHeight);
+            if(current.pyramidTargetHeightInches == 0.0)
             {
-                // We passed the first test...we fit a rectangle to the polygon
-                // Now do some more tests
-
-                WPIPoint[] points = p.getPoints();
-                // We expect to see a top line that is nearly horizontal, and two side lines that are nearly vertical
-                int numNearlyHorizontal = 0;
-                int numNearlyVertical = 0;
-                for( int i = 0; i < 4; i++ )
-                {
-                    double dy = points[i].getY() - points[(i+1) % 4].getY(); // Change in Y from one point to the next
-                    double dx = points[i].getX() - points[(i+1) % 4].getX(); // Change in X from one point to the next
-                    double slope = Double.MAX_VALUE;
-                    // If slope not 0, in other words not perfectly horizontal
-                    if( dx != 0 ) 
-                    {
-                        // Find slope of line
-                        slope = Math.abs(dy/dx);
-                    } 
-
-                    // Increment number of horizontal or vertical sides depending on if the slope is
-                    // closer to being horizontal or if the slope is closer to being verticle.
-                    if( slope < kNearlyHorizontalSlope )
-                    {
-                        ++numNearlyHorizontal;
-                    }
-                    else if( slope > kNearlyVerticalSlope )
-                    {
-                        ++numNearlyVertical;
-                    }
-                }
-
-                // Since we assume the top line is horizontal, the funciton only requires that
-                // we have 1 nearly horizontal side and 2 nearly verticle sides to consider it
-                // a target.
-                if(numNearlyHorizontal >= 1 && numNearlyVertical == 2)
+                // The range would be measured from the floor, there is no default height for the pyramid
+                targetRange = 0.0;
+                if(!pyramidHeightWarned)
                 {
-                    // Draw a polygon overlay on the image (visual aid for drivers to see the rectangles)
-                    rawImage.drawPolygon(p, WPIColor.BLUE, 2);
-
-                    // Store the left, right, and midpoint coordinates for future calculations
-                    // The Y values are the middle of the polygon, not the top or bottom
-                    HorizontalPyramidRect rect = new HorizontalPyramidRect(p.getX(),                    //LeftX
-                                                                            p.getX() + p.getWidth(),    //RightX
-                                                                            p.getY() + p.getHeight()/2, //LeftY
-                                                                            p.getY() + p.getHeight()/2, //RightY
-                                                                            p.getWidth(), p.getHeight());   //Width, Height
-                    
-                    horizontalPyramidRects.add(rect); // add the rect to the arraylist of valid horizontal pyramid rects
+                    System.err.println("KrunchCV: " + pyramidTargetHeightInchesKey + " isn't set, no range is reported for pyramid goals");
+                    pyramidHeightWarned = true;
                 }
             }
-            else
-            {
-                // Not an acceptable target
-                rawImage.drawPolygon(p, WPIColor.YELLOW, 1);
-            }
+            targetPyramidHorizontal = h;
+            targetPyramidVertical = v;
         }
-        
-        // Look for vertical pyramid goal rects
-        verticalPyramidRects = new ArrayList<VerticalPyramidRect>(); // Stores all valid vertical pyramid rects and their values
-        for (WPIPolygon p : pyramidGoalVPolygons)
+        else
         {
-            if (p.isConvex() && p.getNumVertices() == 4)
-            {
-                // We passed the first test...we fit a rectangle to the polygon
-                // Now do some more tests
-
-                WPIPoint[] points = p.getPoints();
-                // We expect to see a top line that is nearly horizontal, and two side lines that are nearly vertical
-                int numNearlyHorizontal = 0;
-                int numNearlyVertical = 0;
-                for( int i = 0; i < 4; i++ )
-                {
-                    double dy = points[i].getY() - points[(i+1) % 4].getY(); // Change in Y from one point to the next
-                    double dx = points[i].getX() - points[(i+1) % 4].getX(); // Change in X from one point to the next
-                    double slope = Double.MAX_VALUE;
-                    // If slope not 0, in other words not perfectly horizontal
-                    if( dx != 0 ) 
-                    {
-                        // Find slope of line
-                        slope = Math.abs(dy/dx);
-                    } 
-
-                    // Increment number of horizontal or vertical sides depending on if the slope is
-                    // closer to being horizontal or if the slope is closer to being verticle.
-                    if( slope < kNearlyHorizontalSlope )
-                    {
-                        ++numNearlyHorizontal;
-                    }
-                    else if( slope > kNearlyVerticalSlope )
-                    {
-                        ++numNearlyVertical;
-                    }
-                }
-
-                // Since we assume the top line is horizontal, the funciton only requires that
-                // we have 1 nearly horizontal side and 2 nearly verticle sides to consider it
-                // a target.
-                if(numNearlyHorizontal >= 1 && numNearlyVertical == 2)
-                {
-                    // Draw a polygon overlay on the image (visual aid for drivers to see the rectangles)
-                    rawImage.drawPolygon(p, WPIColor.BLUE, 2);
-
-                    // Store the top point of the vertical polygon
-                    // The X value is the middle of the polygon, and the Y value is the top of the polygon
-                    VerticalPyramidRect rect = new VerticalPyramidRect(p.getX() + p.getWidth()/2,       //TopX
-                                                                        p.getY(),                       //TopY
-                                                                        p.getWidth(), p.getHeight());   //Width, Height
-                    
-                    verticalPyramidRects.add(rect); // add the rect to the arraylist of valid vertical pyramid rects
-                }
-            }
-            else
-            {
-                // Not an acceptable target
-                rawImage.drawPolygon(p, WPIColor.YELLOW, 1);
-            }
+            this.reportNoTarget();
         }
-        
-        // Find horizontal and vertical rects that are closest to each other in proportion to their size
-        // The proportion makes it so that farther away goals that appear smaller in the image don't get
-        // priority when looking for correct goals.
-        
+    }
+    
+    private void setRangeBounds(VisionSettings current, CvScalar lower, CvScalar upper)
+    {
+        // All six bounds come from the same snapshot
+        lower.setVal(0, current.hueLower);
+        lower.setVal(1, current.satLower);
+        lower.setVal(2, current.valLower);
+        upper.setVal(0, current.hueUpper);
+        upper.setVal(1, current.satUpper);
+        upper.setVal(2, current.valUpper);
     }
     
     private double boundAngle0to180DegreesWithDirection(double angle)
@@ -851,6 +1584,10 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
     private void handleMiscError(Exception e)
     {
         e.printStackTrace();
+        if(m_headless)
+        {
+            return;
+        }
         JOptionPane.showMessageDialog(null,
             "An error occurred in the program.",
             "Error in program",
@@ -860,6 +1597,10 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
     private void handleCSVFileError(Exception e)
     {
         e.printStackTrace();
+        if(m_headless)
+        {
+            return;
+        }
         JOptionPane.showMessageDialog(null,
             "An error occurred when attempting to "
             + "open the CSV file. ",
@@ -875,23 +1616,23 @@ public class KrunchCVWidget extends WPICameraExtension implements ITableListener
             shooterTilted = (Boolean)value;
         }
         
+        if(key.equals(headingKey) && value instanceof Double) // Remember when the robot had this heading
+        {
+            headingHistory.record(System.nanoTime(), (Double)value);
+        }
+        
         if(!newValue) // Make sure this is set to not pay attention to new values (ERRORS WILL HAPPEN AT loadSettingsFile)
         {
-            // If key value was changed concerning this widget
-            boolean concernsUs = false;
-            for(String mapKey : keyMap.keySet())
+            // Only apply the key that changed, and only if it concerns this widget.
+            // The frame thread picks the change up in its next settings snapshot.
+            boolean concernsUs;
+            synchronized(keyMap)
             {
-                // If key is needed by this program
-                if(mapKey.equals(key))
-                {
-                    concernsUs = true;
-                }
+                concernsUs = keyMap.containsKey(key);
             }
-
             if(concernsUs)
             {
-                // Reload the values into the widget
-                this.updateLocalSettings();
+                this.putSetting(key, value);
             }
         }
     }
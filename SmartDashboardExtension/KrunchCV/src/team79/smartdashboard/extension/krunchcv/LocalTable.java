@@ -0,0 +1,483 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpilibj.networktables2.type.NumberArray;
+import edu.wpi.first.wpilibj.tables.ITable;
+import edu.wpi.first.wpilibj.tables.ITableListener;
+import edu.wpi.first.wpilibj.tables.TableKeyNotDefinedException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory stand-in for the robot's NetworkTables, for running the widget
+ * offline (benchmarks, batch runs) without a robot. It behaves like a table
+ * the widget is the only client of: values put in it can be read back, and
+ * listeners are told about every new or changed value right away on the
+ * thread that put it, so the listener path runs in a known order. Values the
+ * robot would put (e.g. "Heading") can be replayed from a trace (see
+ * TableTrace).
+ *
+ * Every put and get is logged with its time, so a run shows what the widget
+ * sent and read and how often. Number arrays are logged and stored as copies,
+ * since the publisher reuses its array.
+ *
+ * @author sebastian
+ */
+class LocalTable implements ITable
+{
+    /* One put or get */
+    static class Access
+    {
+        final long nanos; // Since the root table was created
+        final boolean put;
+        final String key; // With the path of the sub table
+        final Object value; // Null for a get of a key that isn't there
+
+        Access(long nanos, boolean put, String key, Object value)
+        {
+            this.nanos = nanos;
+            this.put = put;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final LocalTable root;
+    private final String path; // Prefix of the keys in the log, "" for the root
+    private final long startTime;
+    private final Map<String, Object> values = new HashMap<String, Object>();
+    private final Map<String, LocalTable> subTables = new HashMap<String, LocalTable>();
+    private final List<ITableListener> listeners = new ArrayList<ITableListener>();
+    private final Map<String, List<ITableListener>> keyListeners = new HashMap<String, List<ITableListener>>();
+    private final List<ITableListener> subTableListeners = new ArrayList<ITableListener>();
+    private final List<Access> log; // Shared with the sub tables
+    private boolean logging = true;
+
+    LocalTable()
+    {
+        root = this;
+        path = "";
+        startTime = System.nanoTime();
+        log = new ArrayList<Access>();
+    }
+
+    private LocalTable(LocalTable parent, String name)
+    {
+        root = parent.root;
+        path = parent.path + name + "/";
+        startTime = root.startTime;
+        log = root.log;
+    }
+
+    /* Logging is on to begin with, turn it off for long runs that only need the values */
+    void setLogging(boolean logging)
+    {
+        synchronized (root)
+        {
+            root.logging = logging;
+        }
+    }
+
+    /* Copy of the log of this table and its sub tables, oldest first */
+    List<Access> getLog()
+    {
+        synchronized (root)
+        {
+            return new ArrayList<Access>(log);
+        }
+    }
+
+    void clearLog()
+    {
+        synchronized (root)
+        {
+            log.clear();
+        }
+    }
+
+    /* Number of puts of key (with the path of its sub table) in the log */
+    int countPuts(String key)
+    {
+        int count = 0;
+        for (Access access : this.getLog())
+        {
+            if (access.put && access.key.equals(key))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /* Writes the log as "milliseconds, put|get, key, value" lines, which TableTrace reads back */
+    void writeLog(PrintWriter out)
+    {
+        for (Access access : this.getLog())
+        {
+            out.format("%.3f, %s, %s, %s%n", access.nanos / 1e6, access.put ? "put" : "get", access.key,
+                    format(access.value));
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean containsKey(String key)
+    {
+        synchronized (root)
+        {
+            return values.containsKey(key);
+        }
+    }
+
+    @Override
+    public boolean containsSubTable(String key)
+    {
+        synchronized (root)
+        {
+            return subTables.containsKey(key);
+        }
+    }
+
+    @Override
+    public ITable getSubTable(String key)
+    {
+        LocalTable subTable;
+        List<ITableListener> notify;
+        synchronized (root)
+        {
+            subTable = subTables.get(key);
+            if (subTable != null)
+            {
+                return subTable;
+            }
+            subTable = new LocalTable(this, key);
+            subTables.put(key, subTable);
+            notify = new ArrayList<ITableListener>(subTableListeners);
+        }
+        for (ITableListener listener : notify)
+        {
+            listener.valueChanged(this, key, subTable, true);
+        }
+        return subTable;
+    }
+
+    @Override
+    public Object getValue(String key) throws TableKeyNotDefinedException
+    {
+        synchronized (root)
+        {
+            Object value = values.get(key);
+            this.log(false, key, value);
+            if (value == null)
+            {
+                throw new TableKeyNotDefinedException(key);
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public void putValue(String key, Object value) throws IllegalArgumentException
+    {
+        if (value instanceof NumberArray)
+        {
+            NumberArray array = (NumberArray) value;
+            double[] copy = new double[array.size()];
+            for (int i = 0; i < copy.length; i++)
+            {
+                copy[i] = array.get(i);
+            }
+            value = copy;
+        }
+        else if (value instanceof Number)
+        {
+            value = ((Number) value).doubleValue();
+        }
+        else if (!(value instanceof Boolean) && !(value instanceof String))
+        {
+            throw new IllegalArgumentException("Can't put " + value + " in a local table");
+        }
+
+        boolean isNew;
+        List<ITableListener> notify = new ArrayList<ITableListener>();
+        synchronized (root)
+        {
+            this.log(true, key, value);
+            Object old = values.put(key, value);
+            isNew = (old == null);
+            if (!isNew && (old.equals(value) || (value instanceof double[] && Arrays.equals((double[]) old, (double[]) value))))
+            {
+                return; // Listeners only hear about changes
+            }
+            notify.addAll(listeners);
+            List<ITableListener> forKey = keyListeners.get(key);
+            if (forKey != null)
+            {
+                notify.addAll(forKey);
+            }
+        }
+        for (ITableListener listener : notify)
+        {
+            listener.valueChanged(this, key, value, isNew);
+        }
+    }
+
+    @Override
+    public void retrieveValue(String key, Object externalValue)
+    {
+        Object value = this.getValue(key);
+        if (!(value instanceof double[]) || !(externalValue instanceof NumberArray))
+        {
+            throw new IllegalArgumentException(key + " isn't a number array");
+        }
+        double[] array = (double[]) value;
+        NumberArray external = (NumberArray) externalValue;
+        external.setSize(array.length);
+        for (int i = 0; i < array.length; i++)
+        {
+            external.set(i, array[i]);
+        }
+    }
+
+    @Override
+    public void putNumber(String key, double value)
+    {
+        this.putValue(key, value);
+    }
+
+    @Override
+    public double getNumber(String key) throws TableKeyNotDefinedException
+    {
+        Object value = this.getValue(key);
+        if (!(value instanceof Double))
+        {
+            throw new IllegalArgumentException(key + " isn't a number");
+        }
+        return (Double) value;
+    }
+
+    @Override
+    public double getNumber(String key, double defaultValue)
+    {
+        try
+        {
+            return this.getNumber(key);
+        }
+        catch (TableKeyNotDefinedException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public void putString(String key, String value)
+    {
+        this.putValue(key, value);
+    }
+
+    @Override
+    public String getString(String key) throws TableKeyNotDefinedException
+    {
+        Object value = this.getValue(key);
+        if (!(value instanceof String))
+        {
+            throw new IllegalArgumentException(key + " isn't a string");
+        }
+        return (String) value;
+    }
+
+    @Override
+    public String getString(String key, String defaultValue)
+    {
+        try
+        {
+            return this.getString(key);
+        }
+        catch (TableKeyNotDefinedException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value)
+    {
+        this.putValue(key, value);
+    }
+
+    @Override
+    public boolean getBoolean(String key) throws TableKeyNotDefinedException
+    {
+        Object value = this.getValue(key);
+        if (!(value instanceof Boolean))
+        {
+            throw new IllegalArgumentException(key + " isn't a boolean");
+        }
+        return (Boolean) value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue)
+    {
+        try
+        {
+            return this.getBoolean(key);
+        }
+        catch (TableKeyNotDefinedException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public void addTableListener(ITableListener listener)
+    {
+        this.addTableListener(listener, false);
+    }
+
+    @Override
+    public void addTableListener(ITableListener listener, boolean immediateNotify)
+    {
+        Map<String, Object> current;
+        synchronized (root)
+        {
+            if (listeners.contains(listener))
+            {
+                return;
+            }
+            listeners.add(listener);
+            current = new HashMap<String, Object>(values);
+        }
+        if (immediateNotify)
+        {
+            for (Map.Entry<String, Object> entry : current.entrySet())
+            {
+                listener.valueChanged(this, entry.getKey(), entry.getValue(), true);
+            }
+        }
+    }
+
+    @Override
+    public void addTableListener(String key, ITableListener listener, boolean immediateNotify)
+    {
+        Object value;
+        synchronized (root)
+        {
+            List<ITableListener> forKey = keyListeners.get(key);
+            if (forKey == null)
+            {
+                forKey = new ArrayList<ITableListener>();
+                keyListeners.put(key, forKey);
+            }
+            if (forKey.contains(listener))
+            {
+                return;
+            }
+            forKey.add(listener);
+            value = values.get(key);
+        }
+        if (immediateNotify && value != null)
+        {
+            listener.valueChanged(this, key, value, true);
+        }
+    }
+
+    @Override
+    public void addSubTableListener(ITableListener listener)
+    {
+        synchronized (root)
+        {
+            if (!subTableListeners.contains(listener))
+            {
+                subTableListeners.add(listener);
+            }
+        }
+    }
+
+    @Override
+    public void removeTableListener(ITableListener listener)
+    {
+        synchronized (root)
+        {
+            listeners.remove(listener);
+            subTableListeners.remove(listener);
+            for (List<ITableListener> forKey : keyListeners.values())
+            {
+                forKey.remove(listener);
+            }
+        }
+    }
+
+    // The int and double accessors are deprecated in ITable (putNumber and getNumber replace them)
+    @Deprecated
+    @Override
+    public void putInt(String key, int value)
+    {
+        this.putValue(key, value);
+    }
+
+    @Deprecated
+    @Override
+    public int getInt(String key) throws TableKeyNotDefinedException
+    {
+        return (int) this.getNumber(key);
+    }
+
+    @Deprecated
+    @Override
+    public int getInt(String key, int defaultValue) throws TableKeyNotDefinedException
+    {
+        return (int) this.getNumber(key, defaultValue);
+    }
+
+    @Deprecated
+    @Override
+    public void putDouble(String key, double value)
+    {
+        this.putValue(key, value);
+    }
+
+    @Deprecated
+    @Override
+    public double getDouble(String key) throws TableKeyNotDefinedException
+    {
+        return this.getNumber(key);
+    }
+
+    @Deprecated
+    @Override
+    public double getDouble(String key, double defaultValue)
+    {
+        return this.getNumber(key, defaultValue);
+    }
+
+    /* Called with the root's lock held */
+    private void log(boolean put, String key, Object value)
+    {
+        if (root.logging)
+        {
+            log.add(new Access(System.nanoTime() - startTime, put, path + key, value));
+        }
+    }
+
+    private static String format(Object value)
+    {
+        if (value instanceof double[])
+        {
+            StringBuilder builder = new StringBuilder("[");
+            for (double v : (double[]) value)
+            {
+                builder.append(builder.length() > 1 ? " " : "").append(v);
+            }
+            return builder.append("]").toString();
+        }
+        if (value instanceof String)
+        {
+            return "\"" + value + "\"";
+        }
+        return String.valueOf(value);
+    }
+}
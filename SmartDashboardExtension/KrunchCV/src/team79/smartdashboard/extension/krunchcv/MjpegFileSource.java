@@ -0,0 +1,215 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Frames from a recorded MJPEG file: either JPEGs back to back, or the
+ * multipart stream the Axis camera sends (saved from its mjpg/video.mjpg URL).
+ * Frames are cut out by their JPEG markers, so the part headers in between are
+ * skipped without being parsed. A frame cut off at the end of the file ends
+ * the stream. The file is gone through the given number of passes.
+ *
+ * @author sebastian
+ */
+class MjpegFileSource implements FrameSource
+{
+    private static final int SOI = 0xD8; // Start of image
+    private static final int EOI = 0xD9; // End of image
+    private static final int SOS = 0xDA; // Start of scan, entropy coded data follows its header
+
+    private final File file;
+    private final int passes; // 0 for no end
+    private int pass = 0;
+    private InputStream in = null;
+    private boolean anyFrames = false; // In the current pass
+    private byte[] buffer = new byte[64 * 1024]; // The JPEG being cut out
+    private int length;
+
+    MjpegFileSource(File file, int passes)
+    {
+        this.file = file;
+        this.passes = passes;
+    }
+
+    @Override
+    public WPIColorImage next() throws IOException
+    {
+        while (passes == 0 || pass < passes)
+        {
+            if (in == null)
+            {
+                in = new BufferedInputStream(new FileInputStream(file));
+                anyFrames = false;
+            }
+
+            boolean found;
+            try
+            {
+                found = this.readJpeg();
+            }
+            catch (EOFException e)
+            {
+                found = false; // Cut off frame
+            }
+
+            if (found)
+            {
+                anyFrames = true;
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(buffer, 0, length));
+                if (image == null)
+                {
+                    throw new IOException("Can't decode a frame of " + file);
+                }
+                return new WPIColorImage(image);
+            }
+
+            in.close();
+            in = null;
+            pass++;
+            if (!anyFrames)
+            {
+                break; // No frames in the file, don't go through it forever
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long getDroppedFrames()
+    {
+        return 0;
+    }
+
+    @Override
+    public void close()
+    {
+        if (in != null)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            in = null;
+        }
+    }
+
+    /* Copies the next JPEG into buffer, returns false at the end of the file */
+    private boolean readJpeg() throws IOException
+    {
+        // Skip to the start of image marker
+        int previous = -1;
+        while (true)
+        {
+            int b = in.read();
+            if (b < 0)
+            {
+                return false;
+            }
+            if (previous == 0xFF && b == SOI)
+            {
+                break;
+            }
+            previous = b;
+        }
+        length = 0;
+        this.append(0xFF);
+        this.append(SOI);
+
+        // Marker segments up to the start of scan, each with its length
+        while (true)
+        {
+            int marker = this.readMarker();
+            if (marker == EOI)
+            {
+                return true;
+            }
+            if ((marker >= 0xD0 && marker <= 0xD7) || marker == 0x01)
+            {
+                continue; // No length
+            }
+            int high = this.readByte();
+            int low = this.readByte();
+            this.append(high);
+            this.append(low);
+            for (int i = ((high << 8) | low) - 2; i > 0; i--)
+            {
+                this.append(this.readByte());
+            }
+            if (marker == SOS)
+            {
+                break;
+            }
+        }
+
+        // In the entropy coded data FF 00 is a stuffed FF and FF D0-D7 are restart markers,
+        // so the end of image marker is the only FF D9
+        while (true)
+        {
+            int b = this.readByte();
+            this.append(b);
+            if (b == 0xFF)
+            {
+                int marker;
+                do
+                {
+                    marker = this.readByte();
+                    this.append(marker);
+                } while (marker == 0xFF); // Fill bytes
+                if (marker == EOI)
+                {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /* Reads a marker (FF, any fill bytes, then the code) into buffer and returns its code */
+    private int readMarker() throws IOException
+    {
+        int b = this.readByte();
+        if (b != 0xFF)
+        {
+            throw new IOException("Expected a JPEG marker in " + file);
+        }
+        while (b == 0xFF)
+        {
+            b = this.readByte();
+        }
+        this.append(0xFF);
+        this.append(b);
+        return b;
+    }
+
+    private int readByte() throws IOException
+    {
+        int b = in.read();
+        if (b < 0)
+        {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private void append(int b)
+    {
+        if (length == buffer.length)
+        {
+            buffer = Arrays.copyOf(buffer, 2 * length);
+        }
+        buffer[length++] = (byte) b;
+    }
+}
@@ -0,0 +1,112 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColor;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import edu.wpi.first.wpijavacv.WPIPoint;
+
+/**
+ * Everything needed to draw the overlay of one frame: the goal candidates with
+ * the verdict on each, the chosen target and the crosshair. The detection code
+ * only fills this in (see KrunchCVWidget.captureOverlay), so drawing can be
+ * skipped, cut down to the target, or done later on another thread
+ * (see OverlayRenderer) without holding up the result sent to the robot.
+ *
+ * @author sebastian
+ */
+class Overlay
+{
+    static final WPIColor ALIGNED_COLOR = new WPIColor(0, 255, 0); // Color of overlay when camera is aligned with goal
+    static final WPIColor UNALIGNED_COLOR = new WPIColor(255, 0, 0); // Color of overlay when camera is unaligned with goal
+    static final WPIColor CENTER_POINT_COLOR = new WPIColor(255, 255, 0); // Color of polygon center point
+
+    final QuadClassifier candidates = new QuadClassifier();
+    int target = -1; // Candidate that is the rectangular target, -1 if none
+    int pyramidHorizontal = -1, pyramidVertical = -1; // Candidates of the pyramid target, -1 if none
+    boolean aligned = false;
+    int crosshairX, crosshairY; // Where the crosshair lines cross
+    int width, height; // Of the image
+
+    void draw(WPIColorImage image, boolean targetOnly)
+    {
+        if (!targetOnly)
+        {
+            for (int q = 0; q < candidates.getCount(); q++)
+            {
+                int status = candidates.getStatus(q);
+                if (status == QuadClassifier.ACCEPTED)
+                {
+                    // Draw a polygon overlay with a large point emphasizing the center of the polygon
+                    drawQuadrilateral(image, q, WPIColor.BLUE, 2);
+                    if (candidates.getType(q) == QuadClassifier.RECT_GOAL)
+                    {
+                        image.drawPoint(new WPIPoint(candidates.getX(q) + candidates.getWidth(q) / 2,
+                                candidates.getY(q) + candidates.getHeight(q) / 2), CENTER_POINT_COLOR, 5);
+                    }
+                }
+                else if (status == QuadClassifier.REJECTED)
+                {
+                    // Not an acceptable target
+                    if (candidates.isQuadrilateral(q))
+                    {
+                        drawQuadrilateral(image, q, WPIColor.YELLOW, 1);
+                    }
+                    else
+                    {
+                        image.drawRect(candidates.getX(q), candidates.getY(q), candidates.getWidth(q),
+                                candidates.getHeight(q), WPIColor.YELLOW, 1);
+                    }
+                }
+            }
+        }
+
+        WPIColor outlineColor = aligned ? ALIGNED_COLOR : UNALIGNED_COLOR;
+        if (target >= 0)
+        {
+            // Draw outline around highest goal
+            drawQuadrilateral(image, target, outlineColor, 7);
+        }
+        if (pyramidHorizontal >= 0 && pyramidVertical >= 0)
+        {
+            // Draw the triangle and its centroid
+            WPIPoint left = new WPIPoint(PyramidPairer.leftX(candidates, pyramidHorizontal),
+                    PyramidPairer.sideY(candidates, pyramidHorizontal));
+            WPIPoint right = new WPIPoint(PyramidPairer.rightX(candidates, pyramidHorizontal),
+                    PyramidPairer.sideY(candidates, pyramidHorizontal));
+            WPIPoint top = new WPIPoint(PyramidPairer.topX(candidates, pyramidVertical),
+                    PyramidPairer.topY(candidates, pyramidVertical));
+            image.drawLine(left, right, outlineColor, 3);
+            image.drawLine(right, top, outlineColor, 3);
+            image.drawLine(top, left, outlineColor, 3);
+            image.drawPoint(new WPIPoint((left.getX() + right.getX() + top.getX()) / 3,
+                    (left.getY() + right.getY() + top.getY()) / 3), CENTER_POINT_COLOR, 5);
+        }
+
+        // Draw a crosshair (line down the middle and horizontal line in the middle)
+        image.drawLine(new WPIPoint(crosshairX, height - 1), new WPIPoint(crosshairX, 0), ALIGNED_COLOR, 2);
+        image.drawLine(new WPIPoint(0, crosshairY), new WPIPoint(width, crosshairY), ALIGNED_COLOR, 2);
+    }
+
+    /* Makes this a copy of other */
+    void copyFrom(Overlay other)
+    {
+        candidates.copyFrom(other.candidates);
+        target = other.target;
+        pyramidHorizontal = other.pyramidHorizontal;
+        pyramidVertical = other.pyramidVertical;
+        aligned = other.aligned;
+        crosshairX = other.crosshairX;
+        crosshairY = other.crosshairY;
+        width = other.width;
+        height = other.height;
+    }
+
+    private void drawQuadrilateral(WPIColorImage image, int q, WPIColor color, int thickness)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            image.drawLine(new WPIPoint(candidates.getCornerX(q, i), candidates.getCornerY(q, i)),
+                    new WPIPoint(candidates.getCornerX(q, (i+1) % 4), candidates.getCornerY(q, (i+1) % 4)),
+                    color, thickness);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Draws overlays on a thread of its own, so the camera thread only pays for a
+ * copy of the frame and of its overlay record. The camera thread gets back the
+ * newest frame that was drawn, which is a frame or two behind the one it just
+ * processed; the result sent to the robot is not delayed.
+ *
+ * Works like FramePipeline: every slot owns its image, allocated once, and
+ * slots move between the threads through DropOldestQueues.
+ *
+ * @author sebastian
+ */
+class OverlayRenderer
+{
+    private static final int kQueueCapacity = 1;
+    // One waiting, one being drawn, one finished and one being displayed
+    private static final int kSlots = 2 * kQueueCapacity + 2;
+
+    private static class Slot
+    {
+        final WPIColorImage image;
+        final Overlay overlay = new Overlay();
+        boolean targetOnly;
+
+        Slot(WPIColorImage template)
+        {
+            image = new WPIColorImage(template.getBufferedImage());
+        }
+    }
+
+    private final int width, height;
+    private final Slot[] slots = new Slot[kSlots];
+    private final ConcurrentLinkedQueue<Slot> freeSlots = new ConcurrentLinkedQueue<Slot>();
+    private final DropOldestQueue<Slot> drawQueue = new DropOldestQueue<Slot>(kQueueCapacity);
+    private final DropOldestQueue<Slot> finishedQueue = new DropOldestQueue<Slot>(kQueueCapacity);
+    private final Thread drawThread;
+    private Slot displayed = null; // Held by the camera thread until a newer frame is drawn
+
+    OverlayRenderer(WPIColorImage template)
+    {
+        width = template.getWidth();
+        height = template.getHeight();
+        for (int i = 0; i < kSlots; i++)
+        {
+            slots[i] = new Slot(template);
+            freeSlots.add(slots[i]);
+        }
+
+        drawThread = new Thread("KrunchCV overlay") {
+            @Override
+            public void run() {
+                runDrawThread();
+            }
+        };
+        drawThread.setDaemon(true);
+        drawThread.start();
+    }
+
+    boolean matches(WPIColorImage rawImage)
+    {
+        return rawImage.getWidth() == width && rawImage.getHeight() == height;
+    }
+
+    /*
+     * Called from the camera thread. Queues rawImage with a copy of overlay to be drawn
+     * and returns the newest drawn frame, which is the same one as last time if the draw
+     * thread hasn't finished a newer one, or null if none is done yet. The returned image
+     * stays valid until the next call.
+     */
+    WPIColorImage submit(WPIColorImage rawImage, Overlay overlay, boolean targetOnly)
+    {
+        Slot slot = freeSlots.poll();
+        if (slot != null) // Otherwise every slot is busy and this frame isn't drawn
+        {
+            opencv_core.cvCopy(DaisyExtensions.getIplImage(rawImage), DaisyExtensions.getIplImage(slot.image));
+            slot.overlay.copyFrom(overlay);
+            slot.targetOnly = targetOnly;
+            recycle(drawQueue.offer(slot));
+        }
+
+        Slot finished = finishedQueue.poll();
+        if (finished != null)
+        {
+            recycle(displayed);
+            displayed = finished;
+        }
+        return (displayed != null) ? displayed.image : null;
+    }
+
+    /*
+     * Stops the thread and frees the slots, except for the image submit returned last,
+     * which may still be on screen. That one is returned (null if there is none) and the
+     * caller disposes it once it returned another image.
+     */
+    WPIColorImage shutdown()
+    {
+        drawThread.interrupt();
+        try
+        {
+            drawThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null; // The thread may still be drawing, leave the images to the finalizers
+        }
+
+        for (Slot slot : slots)
+        {
+            if (slot != displayed)
+            {
+                slot.image.dispose();
+            }
+        }
+        return (displayed != null) ? displayed.image : null;
+    }
+
+    private void recycle(Slot slot)
+    {
+        if (slot != null)
+        {
+            freeSlots.add(slot);
+        }
+    }
+
+    private void runDrawThread()
+    {
+        try
+        {
+            while (true)
+            {
+                Slot slot = drawQueue.take();
+                slot.overlay.draw(slot.image, slot.targetOnly);
+                recycle(finishedQueue.offer(slot));
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Renderer shut down
+        }
+    }
+}
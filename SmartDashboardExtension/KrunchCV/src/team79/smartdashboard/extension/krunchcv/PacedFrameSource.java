@@ -0,0 +1,78 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.IOException;
+
+/**
+ * Hands out the frames of another source the way a camera running at a fixed
+ * frame rate would: frame n becomes available n periods after the first one,
+ * next waits for it if the caller is early, and a caller that fell behind gets
+ * the newest frame, with the ones it missed counted as dropped. A rate of 0
+ * hands the frames out as fast as the source gives them.
+ *
+ * @author sebastian
+ */
+class PacedFrameSource implements FrameSource
+{
+    private final FrameSource source;
+    private final long periodNanos;
+    private long startTime;
+    private long frameNumber = 0; // Of the next frame that would be handed out
+    private long droppedFrames = 0;
+
+    PacedFrameSource(FrameSource source, double framesPerSecond)
+    {
+        this.source = source;
+        periodNanos = (framesPerSecond > 0.0) ? (long)(1000000000.0 / framesPerSecond) : 0;
+    }
+
+    @Override
+    public WPIColorImage next() throws IOException, InterruptedException
+    {
+        if (periodNanos == 0)
+        {
+            return source.next();
+        }
+
+        long now = System.nanoTime();
+        if (frameNumber == 0)
+        {
+            startTime = now;
+        }
+
+        // The camera didn't wait for the caller, skip to the newest frame it has captured
+        long newest = (now - startTime) / periodNanos;
+        while (frameNumber < newest)
+        {
+            WPIColorImage missed = source.next();
+            if (missed == null)
+            {
+                return null;
+            }
+            missed.dispose();
+            frameNumber++;
+            droppedFrames++;
+        }
+
+        WPIColorImage frame = source.next();
+        long waitNanos = startTime + frameNumber * periodNanos - System.nanoTime();
+        if (waitNanos > 0)
+        {
+            Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+        }
+        frameNumber++;
+        return frame;
+    }
+
+    @Override
+    public long getDroppedFrames()
+    {
+        return droppedFrames + source.getDroppedFrames();
+    }
+
+    @Override
+    public void close()
+    {
+        source.close();
+    }
+}
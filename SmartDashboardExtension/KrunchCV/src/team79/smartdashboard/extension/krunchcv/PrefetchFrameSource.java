@@ -0,0 +1,115 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decodes the frames of another source ahead of time on a thread of its own,
+ * so the caller doesn't pay for JPEG decoding. Up to the given number of
+ * decoded frames wait in a queue; the decoding thread waits when it is full.
+ *
+ * @author sebastian
+ */
+class PrefetchFrameSource implements FrameSource
+{
+    private static final Object END = new Object(); // Queued after the last frame
+
+    private final FrameSource source;
+    private final BlockingQueue<Object> decoded; // Frames, then END or the IOException that ended the stream
+    private final Thread decodeThread;
+
+    PrefetchFrameSource(FrameSource source, int depth)
+    {
+        this.source = source;
+        decoded = new ArrayBlockingQueue<Object>(Math.max(1, depth));
+
+        decodeThread = new Thread("KrunchCV prefetch") {
+            @Override
+            public void run() {
+                runDecodeThread();
+            }
+        };
+        decodeThread.setDaemon(true);
+        decodeThread.start();
+    }
+
+    @Override
+    public WPIColorImage next() throws IOException, InterruptedException
+    {
+        Object item = decoded.take();
+        if (item instanceof WPIColorImage)
+        {
+            return (WPIColorImage) item;
+        }
+
+        decoded.put(item); // Later calls end the same way
+        if (item instanceof IOException)
+        {
+            throw (IOException) item;
+        }
+        return null;
+    }
+
+    @Override
+    public long getDroppedFrames()
+    {
+        return source.getDroppedFrames();
+    }
+
+    @Override
+    public void close()
+    {
+        decodeThread.interrupt();
+        try
+        {
+            decodeThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return; // Still decoding, leave the frames to the finalizers
+        }
+
+        Object item;
+        while ((item = decoded.poll()) != null)
+        {
+            if (item instanceof WPIColorImage)
+            {
+                ((WPIColorImage) item).dispose();
+            }
+        }
+        source.close();
+    }
+
+    private void runDecodeThread()
+    {
+        try
+        {
+            while (true)
+            {
+                WPIColorImage frame;
+                try
+                {
+                    frame = source.next();
+                }
+                catch (IOException e)
+                {
+                    decoded.put(e);
+                    return;
+                }
+                if (frame == null)
+                {
+                    decoded.put(END);
+                    return;
+                }
+                decoded.put(frame);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Source closed
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import java.util.Arrays;
+
+/**
+ * Finds the horizontal and vertical pyramid rects that belong together: the
+ * pair whose vertical top point is closest to the horizontal midpoint, with the
+ * distance measured in widths of the horizontal rect so that small, far away
+ * goals don't lose out to big, close ones. A vertical rect whose top point is
+ * below the midpoint has its vertical distance counted kBelowPenalty times, so
+ * a rect further down in a cluttered frame doesn't win over the one that meets
+ * the horizontal rect. It isn't rejected outright, since the top of a vertical
+ * rect that touches the horizontal one is up to half its height below the
+ * midpoint. The rects are the pyramid candidates of a QuadClassifier that have
+ * rectangular sides.
+ *
+ * The vertical top points are sorted by x, so each horizontal rect only looks
+ * at the ones within its own search radius of its midpoint in x, found by a
+ * binary search. That is O((H + V) log V) for H horizontal and V vertical
+ * rects, plus the vertical rects inside each horizontal rect's x window, which
+ * only adds up to H * V when all of them are stacked in the same few columns.
+ * A big horizontal rect only widens its own window, not the others'. The sort
+ * array is kept between frames.
+ *
+ * @author sebastian
+ */
+class PyramidPairer
+{
+    private static final double kMaxPairDistance = 1.0; // Max distance between the points, in horizontal rect widths
+    private static final double kBelowPenalty = 3.0; // Weight of the distance of top points below the midpoint
+
+    private long[] sortedTops = new long[16]; // Top x of each vertical rect in the high half, its candidate in the low half
+    private int bestHorizontal = -1, bestVertical = -1;
+    private double bestDistance;
+
+    /* Returns true if a pair was found, see getHorizontal and getVertical */
+    boolean pair(QuadClassifier quads)
+    {
+        bestHorizontal = -1;
+        bestVertical = -1;
+        bestDistance = Double.MAX_VALUE;
+
+        int count = 0;
+        for (int q = 0; q < quads.getCount(); q++)
+        {
+            if (quads.getType(q) == QuadClassifier.PYRAMID_VERTICAL && quads.hasRectangularSides(q))
+            {
+                if (count == sortedTops.length)
+                {
+                    sortedTops = Arrays.copyOf(sortedTops, 2 * count);
+                }
+                sortedTops[count++] = ((long) topX(quads, q) << 32) | q;
+            }
+        }
+        if (count == 0)
+        {
+            return false;
+        }
+        Arrays.sort(sortedTops, 0, count);
+
+        for (int h = 0; h < quads.getCount(); h++)
+        {
+            if (quads.getType(h) != QuadClassifier.PYRAMID_HORIZONTAL || !quads.hasRectangularSides(h))
+            {
+                continue;
+            }
+            double width = quads.getWidth(h);
+            double midpointX = midpointX(quads, h);
+            double midpointY = midpointY(quads, h);
+            double radius = kMaxPairDistance * width;
+            int lastX = (int)Math.floor(midpointX + radius);
+            for (int i = firstAtOrAfter(count, (int)Math.ceil(midpointX - radius));
+                    i < count && (int)(sortedTops[i] >> 32) <= lastX; i++)
+            {
+                int v = (int) sortedTops[i];
+                double dx = topX(quads, v) - midpointX;
+                double dy = topY(quads, v) - midpointY;
+                if (dy > 0.0)
+                {
+                    dy *= kBelowPenalty; // Image y grows downwards
+                }
+                double distance = Math.sqrt(dx * dx + dy * dy) / width;
+                if (distance <= kMaxPairDistance && distance < bestDistance)
+                {
+                    bestDistance = distance;
+                    bestHorizontal = h;
+                    bestVertical = v;
+                }
+            }
+        }
+        return bestHorizontal >= 0;
+    }
+
+    /* Index of the first of the count sorted top points with an x of at least x */
+    private int firstAtOrAfter(int count, int x)
+    {
+        long key = (long) x << 32;
+        int low = 0, high = count;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (sortedTops[middle] < key)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /* Candidate of the horizontal rect of the best pair */
+    int getHorizontal()
+    {
+        return bestHorizontal;
+    }
+
+    /* Candidate of the vertical rect of the best pair */
+    int getVertical()
+    {
+        return bestVertical;
+    }
+
+    // The ends of a horizontal rect are the middle of its left and right sides
+    static int leftX(QuadClassifier quads, int q)
+    {
+        return quads.getX(q);
+    }
+
+    static int rightX(QuadClassifier quads, int q)
+    {
+        return quads.getX(q) + quads.getWidth(q);
+    }
+
+    static int sideY(QuadClassifier quads, int q)
+    {
+        return quads.getY(q) + quads.getHeight(q) / 2;
+    }
+
+    static double midpointX(QuadClassifier quads, int q)
+    {
+        return (leftX(quads, q) + rightX(quads, q)) / 2.0;
+    }
+
+    static double midpointY(QuadClassifier quads, int q)
+    {
+        return sideY(quads, q);
+    }
+
+    // The top point of a vertical rect is the middle of its top side
+    static int topX(QuadClassifier quads, int q)
+    {
+        return quads.getX(q) + quads.getWidth(q) / 2;
+    }
+
+    static int topY(QuadClassifier quads, int q)
+    {
+        return quads.getY(q);
+    }
+}
@@ -0,0 +1,319 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import edu.wpi.first.wpijavacv.WPIContour;
+import java.util.Arrays;
+
+/**
+ * Sorts the contours of a frame into rectangular goal, pyramid horizontal and
+ * pyramid vertical candidates in one pass, and keeps the approximated
+ * quadrilateral of each candidate in primitive arrays (one entry per
+ * candidate, corners four per candidate) that are reused from frame to frame.
+ * The goal code reads the candidates through the getters instead of building
+ * WPIPolygon, WPIPoint and pyramid rect objects for every contour.
+ *
+ * A candidate's type only depends on its bounding box (height/width ratio and
+ * width). Whether it really is a goal also takes its shape: the approximation
+ * has to be a convex quadrilateral with rectangular sides (see
+ * hasRectangularSides). The goal code stores its verdict on each candidate
+ * with setStatus, so the overlay can be drawn later from a copy (see Overlay).
+ *
+ * @author sebastian
+ */
+class QuadClassifier
+{
+    static final int RECT_GOAL = 0;
+    static final int PYRAMID_HORIZONTAL = 1;
+    static final int PYRAMID_VERTICAL = 2;
+
+    // Verdict of the goal code on a candidate
+    static final int IGNORED = 0; // Not looked at (not the kind of goal being searched for), not drawn
+    static final int REJECTED = 1;
+    static final int ACCEPTED = 2;
+
+    static final double kNearlyHorizontalSlope = Math.tan(Math.toRadians(20)); // Slope of an acceptable horizontal line in degrees
+    static final double kNearlyVerticalSlope = Math.tan(Math.toRadians(90-20)); // Slope of an acceptable vertical line in degrees
+    static final double kMinRatioRectGoals = 0.05; // Contour height/width ratios of rectangular goals
+    static final double kMaxRatioRectGoals = 0.5;
+    static final double kMinRatioPyramidHGoals = 0.5; // Pyramid horizontal goals are wider than tall
+    static final double kMaxRatioPyramidHGoals = 1.0;
+    static final double kMinRatioPyramidVGoals = 1.0; // Pyramid vertical goals are taller than wide
+    static final double kMaxRatioPyramidVGoals = 2.0;
+    static final int kMinWidthPyramidHGoals = 20; // Contour width ratios of pyramid horizontal goals *NEEDS TO BE CHANGED
+    static final int kMaxWidthPyramidHGoals = 200;
+    static final int kMinWidthPyramidVGoals = 20; // Contour width ratios of pyramid vertical goals *NEEDS TO BE CHANGED
+    static final int kMaxWidthPyramidVGoals = 200;
+    private static final double kApproxAccuracy = 20; // Passed to cvApproxPoly, same as approxPolygon(20) before
+
+    private int count = 0;
+    private int[] type = new int[16];
+    private int[] status = new int[16];
+    private boolean[] quadrilateral = new boolean[16]; // False if the approximation wasn't a convex quadrilateral
+    private int[] cornerX = new int[4 * 16]; // Corners in polygon order, only set for quadrilaterals
+    private int[] cornerY = new int[4 * 16];
+    private int[] boxX = new int[16]; // Box of the quadrilateral, or of the contour if it isn't one
+    private int[] boxY = new int[16];
+    private int[] boxWidth = new int[16];
+    private int[] boxHeight = new int[16];
+    private int[] horizontalEdges = new int[16]; // Number of nearly horizontal sides
+    private int[] verticalEdges = new int[16]; // Number of nearly vertical sides
+
+    void clear()
+    {
+        count = 0;
+    }
+
+    /*
+     * Replaces the candidates with the contours that could be goals of any type. The
+     * width bounds of rectangular goals come from the dashboard, the rest are constants.
+     * The corners are approximated in the context the contours were found in.
+     */
+    void classify(WPIContour[] contours, DaisyExtensions.ContourContext context, double minWidthRectGoals,
+            double maxWidthRectGoals)
+    {
+        count = 0;
+        for (WPIContour c : contours)
+        {
+            int width = c.getWidth();
+            int height = c.getHeight();
+            int candidateType = typeOf(width, height, minWidthRectGoals, maxWidthRectGoals);
+            if (candidateType < 0)
+            {
+                continue;
+            }
+
+            int q = this.add(candidateType);
+            quadrilateral[q] = context.approxQuadrilateral(c, kApproxAccuracy, cornerX, cornerY, 4 * q);
+            if (quadrilateral[q])
+            {
+                this.measure(q);
+            }
+            else
+            {
+                // Only used to show the rejected candidate
+                boxX[q] = c.getX();
+                boxY[q] = c.getY();
+                boxWidth[q] = width;
+                boxHeight[q] = height;
+            }
+        }
+    }
+
+    /*
+     * Adds a blob from the labeler as a rectangular goal candidate, with its extreme points
+     * as the corners and its own box. Returns the candidate, or -1 if the blob's box can't
+     * be a rectangular goal.
+     */
+    int addBlob(BlobLabeler labeler, int blob, double minWidthRectGoals, double maxWidthRectGoals)
+    {
+        int width = labeler.getWidth(blob);
+        int height = labeler.getHeight(blob);
+        if (typeOf(width, height, minWidthRectGoals, maxWidthRectGoals) != RECT_GOAL)
+        {
+            return -1;
+        }
+
+        int q = this.add(RECT_GOAL);
+        quadrilateral[q] = true;
+        for (int i = 0; i < 4; i++)
+        {
+            cornerX[4 * q + i] = labeler.getCornerX(blob, i);
+            cornerY[4 * q + i] = labeler.getCornerY(blob, i);
+        }
+        this.measure(q);
+        boxX[q] = labeler.getX(blob);
+        boxY[q] = labeler.getY(blob);
+        boxWidth[q] = width;
+        boxHeight[q] = height;
+        return q;
+    }
+
+    int getCount()
+    {
+        return count;
+    }
+
+    int getType(int q)
+    {
+        return type[q];
+    }
+
+    int getStatus(int q)
+    {
+        return status[q];
+    }
+
+    void setStatus(int q, int candidateStatus)
+    {
+        status[q] = candidateStatus;
+    }
+
+    boolean isQuadrilateral(int q)
+    {
+        return quadrilateral[q];
+    }
+
+    /* We expect to see a top line that is nearly horizontal, and two side lines that are nearly vertical */
+    boolean hasRectangularSides(int q)
+    {
+        // Since we assume the top line is horizontal, the funciton only requires that
+        // we have 1 nearly horizontal side and 2 nearly verticle sides to consider it
+        // a target.
+        return quadrilateral[q] && horizontalEdges[q] >= 1 && verticalEdges[q] == 2;
+    }
+
+    /* Corner 0 to 3 */
+    int getCornerX(int q, int corner)
+    {
+        return cornerX[4 * q + corner];
+    }
+
+    int getCornerY(int q, int corner)
+    {
+        return cornerY[4 * q + corner];
+    }
+
+    int getX(int q)
+    {
+        return boxX[q];
+    }
+
+    int getY(int q)
+    {
+        return boxY[q];
+    }
+
+    int getWidth(int q)
+    {
+        return boxWidth[q];
+    }
+
+    int getHeight(int q)
+    {
+        return boxHeight[q];
+    }
+
+    /* Area of the quadrilateral */
+    double getArea(int q)
+    {
+        // Shoelace formula
+        double twiceArea = 0.0;
+        for (int i = 0; i < 4; i++)
+        {
+            int j = (i + 1) % 4;
+            twiceArea += (double) cornerX[4 * q + i] * cornerY[4 * q + j] - (double) cornerX[4 * q + j] * cornerY[4 * q + i];
+        }
+        return Math.abs(twiceArea) / 2.0;
+    }
+
+    /* Makes this a copy of other, reusing this one's arrays if they are big enough */
+    void copyFrom(QuadClassifier other)
+    {
+        this.ensureCapacity(other.count);
+        count = other.count;
+        System.arraycopy(other.type, 0, type, 0, count);
+        System.arraycopy(other.status, 0, status, 0, count);
+        System.arraycopy(other.quadrilateral, 0, quadrilateral, 0, count);
+        System.arraycopy(other.cornerX, 0, cornerX, 0, 4 * count);
+        System.arraycopy(other.cornerY, 0, cornerY, 0, 4 * count);
+        System.arraycopy(other.boxX, 0, boxX, 0, count);
+        System.arraycopy(other.boxY, 0, boxY, 0, count);
+        System.arraycopy(other.boxWidth, 0, boxWidth, 0, count);
+        System.arraycopy(other.boxHeight, 0, boxHeight, 0, count);
+        System.arraycopy(other.horizontalEdges, 0, horizontalEdges, 0, count);
+        System.arraycopy(other.verticalEdges, 0, verticalEdges, 0, count);
+    }
+
+    private static int typeOf(int width, int height, double minWidthRectGoals, double maxWidthRectGoals)
+    {
+        double ratio = ((double) height) / ((double) width);
+        if (ratio < kMaxRatioRectGoals && ratio > kMinRatioRectGoals && width > minWidthRectGoals && width < maxWidthRectGoals)
+        {
+            return RECT_GOAL;
+        }
+        if (ratio < kMaxRatioPyramidHGoals && ratio > kMinRatioPyramidHGoals && width > kMinWidthPyramidHGoals && width < kMaxWidthPyramidHGoals)
+        {
+            return PYRAMID_HORIZONTAL;
+        }
+        if (ratio < kMaxRatioPyramidVGoals && ratio > kMinRatioPyramidVGoals && width > kMinWidthPyramidVGoals && width < kMaxWidthPyramidVGoals)
+        {
+            return PYRAMID_VERTICAL;
+        }
+        return -1;
+    }
+
+    /* Appends a candidate, growing the arrays if they are full */
+    private int add(int candidateType)
+    {
+        if (count == type.length)
+        {
+            this.ensureCapacity(2 * count);
+        }
+        type[count] = candidateType;
+        status[count] = IGNORED;
+        return count++;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > type.length)
+        {
+            type = Arrays.copyOf(type, capacity);
+            status = Arrays.copyOf(status, capacity);
+            quadrilateral = Arrays.copyOf(quadrilateral, capacity);
+            cornerX = Arrays.copyOf(cornerX, 4 * capacity);
+            cornerY = Arrays.copyOf(cornerY, 4 * capacity);
+            boxX = Arrays.copyOf(boxX, capacity);
+            boxY = Arrays.copyOf(boxY, capacity);
+            boxWidth = Arrays.copyOf(boxWidth, capacity);
+            boxHeight = Arrays.copyOf(boxHeight, capacity);
+            horizontalEdges = Arrays.copyOf(horizontalEdges, capacity);
+            verticalEdges = Arrays.copyOf(verticalEdges, capacity);
+        }
+    }
+
+    /* Counts the nearly horizontal and vertical sides of the quadrilateral and finds its box */
+    private void measure(int q)
+    {
+        int numNearlyHorizontal = 0;
+        int numNearlyVertical = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < 4; i++)
+        {
+            int x = cornerX[4 * q + i];
+            int y = cornerY[4 * q + i];
+            double dy = y - cornerY[4 * q + (i + 1) % 4]; // Change in Y from one point to the next
+            double dx = x - cornerX[4 * q + (i + 1) % 4]; // Change in X from one point to the next
+            double slope = Double.MAX_VALUE;
+            // If slope not 0, in other words not perfectly horizontal
+            if (dx != 0)
+            {
+                slope = Math.abs(dy / dx);
+            }
+
+            // Increment number of horizontal or vertical sides depending on if the slope is
+            // closer to being horizontal or if the slope is closer to being verticle.
+            if (slope < kNearlyHorizontalSlope)
+            {
+                ++numNearlyHorizontal;
+            }
+            else if (slope > kNearlyVerticalSlope)
+            {
+                ++numNearlyVertical;
+            }
+
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        horizontalEdges[q] = numNearlyHorizontal;
+        verticalEdges[q] = numNearlyVertical;
+
+        // Same as cvBoundingRect of the polygon
+        boxX[q] = minX;
+        boxY[q] = minY;
+        boxWidth[q] = maxX - minX + 1;
+        boxHeight[q] = maxY - minY + 1;
+    }
+}
@@ -0,0 +1,179 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frames from a segment written by FrameRecorder, in the order they were
+ * recorded, so a recorded match goes through processImage just like camera
+ * frames do (see BatchReplayRunner and FrameSourceRunner). The segment is
+ * mapped and each frame is only decoded when it is asked for, so a long
+ * recording doesn't have to fit in memory. The recorded result of the last
+ * frame handed out is kept to compare the replay against; the mask is
+ * skipped, the replay makes its own. The segment is gone through the given
+ * number of passes.
+ *
+ * @author sebastian
+ */
+class RecordingFrameSource implements FrameSource
+{
+    private final File file;
+    private final int passes; // 0 for no end
+    private int pass = 0;
+    private MappedByteBuffer segment = null; // Mapped on the first frame
+    private int count;
+    private int index = 0;
+    private BufferedImage image = null; // Reused while the frame size doesn't change
+    private long sequence;
+    private double[] recordedResult;
+
+    RecordingFrameSource(File file, int passes)
+    {
+        this.file = file;
+        this.passes = passes;
+    }
+
+    @Override
+    public WPIColorImage next() throws IOException
+    {
+        if (segment == null)
+        {
+            this.map();
+        }
+        if (count == 0 || (passes > 0 && pass >= passes))
+        {
+            return null;
+        }
+
+        int entry = FrameRecorder.HEADER_BYTES + index * FrameRecorder.INDEX_ENTRY_BYTES;
+        if (++index == count)
+        {
+            index = 0;
+            pass++;
+        }
+        segment.position(segment.getInt(entry));
+        sequence = segment.getLong(entry + 8);
+
+        int width = segment.getInt();
+        int height = segment.getInt();
+        int rawStep = segment.getInt();
+        segment.getInt(); // Mask widthStep
+        recordedResult = new double[segment.getInt()];
+        for (int j = 0; j < recordedResult.length; j++)
+        {
+            recordedResult[j] = segment.getDouble();
+        }
+
+        // The rows of the IplImage are padded to widthStep, the BufferedImage's are not
+        if (image == null || image.getWidth() != width || image.getHeight() != height)
+        {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        }
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int rowStart = segment.position();
+        for (int y = 0; y < height; y++)
+        {
+            segment.position(rowStart + y * rawStep);
+            segment.get(pixels, y * width * 3, width * 3);
+        }
+        return new WPIColorImage(image);
+    }
+
+    /* Name of the last frame handed out, the segment's path and the frame's sequence number */
+    String getFrameName()
+    {
+        return file.getPath() + "#" + sequence;
+    }
+
+    /* Result recorded with the last frame handed out, laid out like TargetResultPublisher's array */
+    double[] getRecordedResult()
+    {
+        return recordedResult;
+    }
+
+    @Override
+    public long getDroppedFrames()
+    {
+        return 0;
+    }
+
+    @Override
+    public void close()
+    {
+        segment = null; // Unmapped when it is garbage collected
+    }
+
+    /*
+     * Sorts segments into the order they were written in: by run (the start of their name), then
+     * by the sequence number of their first frame, since FrameRecorder reuses its files. Segments
+     * without frames go last.
+     */
+    static void sortSegments(List<File> segments) throws IOException
+    {
+        final Map<File, Long> firstSequences = new HashMap<File, Long>();
+        for (File file : segments)
+        {
+            long sequence = Long.MAX_VALUE;
+            RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+            try
+            {
+                segmentFile.seek(8);
+                if (segmentFile.readInt() > 0)
+                {
+                    segmentFile.seek(FrameRecorder.HEADER_BYTES + 8);
+                    sequence = segmentFile.readLong();
+                }
+            }
+            finally
+            {
+                segmentFile.close();
+            }
+            firstSequences.put(file, sequence);
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                int byRun = runName(a).compareTo(runName(b));
+                if (byRun != 0)
+                {
+                    return byRun;
+                }
+                return firstSequences.get(a).compareTo(firstSequences.get(b));
+            }
+        });
+    }
+
+    /* The directory and the run's start time, e.g. "recordings/1350551234567" */
+    private static String runName(File segment)
+    {
+        String path = segment.getPath();
+        int dash = path.lastIndexOf('-');
+        return (dash < 0) ? path : path.substring(0, dash);
+    }
+
+    private void map() throws IOException
+    {
+        // The mapping stays valid after the file is closed
+        RandomAccessFile segmentFile = new RandomAccessFile(file, "r");
+        try
+        {
+            segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, segmentFile.length());
+        }
+        finally
+        {
+            segmentFile.close();
+        }
+        count = FrameRecorder.readHeader(segment, file);
+    }
+}
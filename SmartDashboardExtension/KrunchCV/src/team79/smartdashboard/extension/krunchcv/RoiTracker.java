@@ -0,0 +1,99 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core.CvRect;
+
+/**
+ * Remembers where the target was in the last frames and predicts a region of
+ * interest to search in the next one, so that while the target is tracked only
+ * a small part of the image has to be thresholded and contoured.
+ *
+ * A full frame search is done when there is no target, when it was lost in the
+ * region of interest, and every kFullSearchInterval frames in case a better
+ * (higher) target came into view somewhere else.
+ *
+ * @author sebastian
+ */
+class RoiTracker
+{
+    private static final int kFullSearchInterval = 15; // Frames between forced full frame searches
+    private static final double kMarginScale = 0.75; // Margin around the predicted box, as a fraction of its size
+    private static final int kMinMargin = 16; // Pixels
+    private static final double kVelocitySmoothing = 0.5; // Weight of the newest movement in the velocity estimate
+
+    private boolean tracking = false;
+    private double centerX, centerY, width, height; // Last target box
+    private double velocityX, velocityY; // Pixels per frame
+    private int framesSinceFullSearch = 0;
+    private long roiFrames = 0, fullFrames = 0;
+
+    /*
+     * Decides how the next frame is searched. Returns true and fills in roi if only
+     * part of the image needs to be searched, false for a full frame search.
+     */
+    boolean predict(int imageWidth, int imageHeight, CvRect roi)
+    {
+        if (!tracking || framesSinceFullSearch >= kFullSearchInterval)
+        {
+            framesSinceFullSearch = 0;
+            fullFrames++;
+            return false;
+        }
+
+        double predictedX = centerX + velocityX;
+        double predictedY = centerY + velocityY;
+        double marginX = Math.max(kMinMargin, width * kMarginScale + Math.abs(velocityX));
+        double marginY = Math.max(kMinMargin, height * kMarginScale + Math.abs(velocityY));
+
+        int left = Math.max(0, (int)(predictedX - width / 2 - marginX));
+        int top = Math.max(0, (int)(predictedY - height / 2 - marginY));
+        int right = Math.min(imageWidth, (int)Math.ceil(predictedX + width / 2 + marginX));
+        int bottom = Math.min(imageHeight, (int)Math.ceil(predictedY + height / 2 + marginY));
+        if (right - left <= 0 || bottom - top <= 0)
+        {
+            // Predicted off the image
+            tracking = false;
+            fullFrames++;
+            return false;
+        }
+
+        roi.x(left).y(top).width(right - left).height(bottom - top);
+        framesSinceFullSearch++;
+        roiFrames++;
+        return true;
+    }
+
+    /* Called with the target box of the frame (full image coordinates) */
+    void found(int x, int y, int boxWidth, int boxHeight)
+    {
+        double newCenterX = x + boxWidth / 2.0;
+        double newCenterY = y + boxHeight / 2.0;
+        if (tracking)
+        {
+            velocityX = kVelocitySmoothing * (newCenterX - centerX) + (1 - kVelocitySmoothing) * velocityX;
+            velocityY = kVelocitySmoothing * (newCenterY - centerY) + (1 - kVelocitySmoothing) * velocityY;
+        }
+        else
+        {
+            velocityX = 0;
+            velocityY = 0;
+        }
+        centerX = newCenterX;
+        centerY = newCenterY;
+        width = boxWidth;
+        height = boxHeight;
+        tracking = true;
+    }
+
+    /* Called when the frame had no target, the next frame gets a full search */
+    void lost()
+    {
+        tracking = false;
+    }
+
+    /* Fraction of frames that only searched the region of interest */
+    double getRoiFraction()
+    {
+        long total = roiFrames + fullFrames;
+        return (total == 0) ? 0.0 : (double) roiFrames / total;
+    }
+}
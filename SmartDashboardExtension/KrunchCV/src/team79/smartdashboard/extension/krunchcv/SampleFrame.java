@@ -0,0 +1,76 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core;
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import edu.wpi.first.wpijavacv.WPIColorImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+/**
+ * A sample image loaded for offline runs, with a pristine copy to restore the
+ * working image from, since processImage draws its overlay on the input.
+ * Recordings are too big to keep two images of every frame around, they are
+ * streamed instead (see RecordingFrameSource).
+ *
+ * @author sebastian
+ */
+class SampleFrame
+{
+    final File file;
+    final WPIColorImage pristine;
+    final WPIColorImage work;
+
+    SampleFrame(File file) throws IOException
+    {
+        this.file = file;
+        pristine = new WPIColorImage(ImageIO.read(file));
+        work = new WPIColorImage(ImageIO.read(file));
+    }
+
+    void restore()
+    {
+        opencv_core.cvCopy(DaisyExtensions.getIplImage(pristine), DaisyExtensions.getIplImage(work));
+    }
+
+    /* Loads every .jpg under root (or root itself if it is a file), sorted by path */
+    static List<SampleFrame> loadTree(File root) throws IOException
+    {
+        return loadTree(root, null);
+    }
+
+    /* Same, and adds the recording segments under root to recordings (unless it is null) */
+    static List<SampleFrame> loadTree(File root, List<File> recordings) throws IOException
+    {
+        List<SampleFrame> frames = new ArrayList<SampleFrame>();
+        addTree(root, frames, recordings);
+        return frames;
+    }
+
+    private static void addTree(File file, List<SampleFrame> frames, List<File> recordings) throws IOException
+    {
+        if (file.isDirectory())
+        {
+            File[] children = file.listFiles();
+            if (children != null)
+            {
+                Arrays.sort(children);
+                for (File child : children)
+                {
+                    addTree(child, frames, recordings);
+                }
+            }
+        }
+        else if (file.getName().toLowerCase().endsWith(".jpg"))
+        {
+            frames.add(new SampleFrame(file));
+        }
+        else if (recordings != null && file.getName().endsWith(FrameRecorder.SEGMENT_EXTENSION))
+        {
+            recordings.add(file);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpilibj.tables.ITable;
+import java.util.Arrays;
+
+/**
+ * Rolling latency statistics for the stages of processImage over a sliding
+ * window of frames. Recording a frame only copies a few longs into ring buffers,
+ * the percentiles are worked out when the stats are refreshed (a few times a
+ * second at most) using preallocated scratch space.
+ *
+ * @author sebastian
+ */
+class StageLatencyStats
+{
+    private final String[] stageNames;
+    private final long[][] samples; // [stage][frame in window]
+    private final long[] frameTimes; // Time each frame in the window finished
+    private final long[] scratch;
+    private final int window;
+    private int next = 0;
+    private int count = 0;
+
+    // Values from the last refresh
+    private final double[] p50Ms, p95Ms, maxMs;
+    private double framesPerSecond = 0.0;
+    private long lastRefreshTime = 0;
+
+    StageLatencyStats(String[] stageNames, int window)
+    {
+        this.stageNames = stageNames;
+        this.window = window;
+        samples = new long[stageNames.length][window];
+        frameTimes = new long[window];
+        scratch = new long[window];
+        p50Ms = new double[stageNames.length];
+        p95Ms = new double[stageNames.length];
+        maxMs = new double[stageNames.length];
+    }
+
+    void record(long[] stageNanos, long frameEndTime)
+    {
+        for (int stage = 0; stage < samples.length; stage++)
+        {
+            samples[stage][next] = stageNanos[stage];
+        }
+        frameTimes[next] = frameEndTime;
+        next = (next + 1) % window;
+        if (count < window)
+        {
+            count++;
+        }
+    }
+
+    /* Recomputes the percentiles if at least intervalNanos passed since the last time. Returns true if it did */
+    boolean refresh(long now, long intervalNanos)
+    {
+        if (count == 0 || (lastRefreshTime != 0 && now - lastRefreshTime < intervalNanos))
+        {
+            return false;
+        }
+        lastRefreshTime = now;
+
+        for (int stage = 0; stage < samples.length; stage++)
+        {
+            System.arraycopy(samples[stage], 0, scratch, 0, count);
+            Arrays.sort(scratch, 0, count);
+            p50Ms[stage] = scratch[count / 2] / 1000000.0;
+            p95Ms[stage] = scratch[(int)((count - 1) * 0.95)] / 1000000.0;
+            maxMs[stage] = scratch[count - 1] / 1000000.0;
+        }
+
+        // Oldest frame in the window is at next once the window has filled up
+        int oldest = (count < window) ? 0 : next;
+        int newest = (next + window - 1) % window;
+        long span = frameTimes[newest] - frameTimes[oldest];
+        framesPerSecond = (count > 1 && span > 0) ? (count - 1) * 1000000000.0 / span : 0.0;
+        return true;
+    }
+
+    void publish(ITable table)
+    {
+        for (int stage = 0; stage < stageNames.length; stage++)
+        {
+            table.putNumber(stageNames[stage] + " p50 ms", p50Ms[stage]);
+            table.putNumber(stageNames[stage] + " p95 ms", p95Ms[stage]);
+            table.putNumber(stageNames[stage] + " max ms", maxMs[stage]);
+        }
+        table.putNumber("fps", framesPerSecond);
+    }
+
+    double getP50Ms(int stage)
+    {
+        return p50Ms[stage];
+    }
+
+    double getP95Ms(int stage)
+    {
+        return p95Ms[stage];
+    }
+
+    double getMaxMs(int stage)
+    {
+        return maxMs[stage];
+    }
+
+    double getFramesPerSecond()
+    {
+        return framesPerSecond;
+    }
+}
@@ -0,0 +1,120 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values the robot put in the table over time, e.g. its "Heading" and
+ * "shooter tilted", to replay into a LocalTable. A trace file has one value
+ * per line: "milliseconds, put, key, value", the format LocalTable.writeLog
+ * writes, so the log of a run can be replayed as it is (its get lines and
+ * number arrays are skipped). Values are true or false, a number, or a string
+ * in quotes. Lines starting with # are skipped. Keys of sub tables (with
+ * their path, e.g. "KrunchCV Diagnostics/fps") are put in the table as they are.
+ *
+ * @author sebastian
+ */
+class TableTrace
+{
+    private final List<Long> nanos = new ArrayList<Long>(); // Since the start of the trace, in order
+    private final List<String> keys = new ArrayList<String>();
+    private final List<Object> values = new ArrayList<Object>();
+    private int next = 0; // First value not replayed yet
+
+    static TableTrace load(File file) throws IOException
+    {
+        TableTrace trace = new TableTrace();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try
+        {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null)
+            {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                {
+                    continue;
+                }
+
+                String[] fields = line.split(",\\s*", 4);
+                if (fields.length != 4)
+                {
+                    throw new IOException(file + ":" + lineNumber + ": expected milliseconds, put, key, value: " + line);
+                }
+                if (!fields[1].equals("put") || fields[3].startsWith("["))
+                {
+                    continue;
+                }
+                try
+                {
+                    trace.add((long)(Double.parseDouble(fields[0]) * 1e6), fields[2], parseValue(fields[3]));
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IOException(file + ":" + lineNumber + ": bad number: " + line);
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return trace;
+    }
+
+    void add(long nanosSinceStart, String key, Object value)
+    {
+        // Keep the values in time order, traces put together by hand may not be
+        int i = nanos.size();
+        while (i > 0 && nanos.get(i - 1) > nanosSinceStart)
+        {
+            i--;
+        }
+        nanos.add(i, nanosSinceStart);
+        keys.add(i, key);
+        values.add(i, value);
+    }
+
+    /* Puts every value up to nanosSinceStart that wasn't replayed yet in table. Returns the number put */
+    int replayUntil(long nanosSinceStart, LocalTable table)
+    {
+        int count = 0;
+        while (next < nanos.size() && nanos.get(next) <= nanosSinceStart)
+        {
+            table.putValue(keys.get(next), values.get(next));
+            next++;
+            count++;
+        }
+        return count;
+    }
+
+    /* Starts the replay over */
+    void rewind()
+    {
+        next = 0;
+    }
+
+    int size()
+    {
+        return nanos.size();
+    }
+
+    private static Object parseValue(String text)
+    {
+        if (text.equals("true") || text.equals("false"))
+        {
+            return Boolean.valueOf(text);
+        }
+        if (text.length() >= 2 && text.startsWith("\"") && text.endsWith("\""))
+        {
+            return text.substring(1, text.length() - 1);
+        }
+        return Double.valueOf(text);
+    }
+}
@@ -0,0 +1,191 @@
+package team79.smartdashboard.extension.krunchcv;
+
+/**
+ * Alpha-beta filter that follows one target over frames, so the robot gets a
+ * smoothed azimuth and range with their rates of change and a short prediction
+ * instead of raw values that jump whenever a noisy frame picks a different
+ * polygon.
+ *
+ * A measurement belongs to the tracked target if it is inside the gates around
+ * the prediction. A measurement outside the gates is ignored as an outlier,
+ * unless kMaxOutliers of them come in a row, in which case the filter starts
+ * over on the new target. Frames without a target only advance the prediction,
+ * and after kMaxCoastNanos without a measurement the track is dropped.
+ *
+ * There is a single track rather than one per target: the detection reports
+ * one target per frame, so there is nothing to tell targets apart by except
+ * the gates. A target of another type (rectangular or pyramid goal) is never
+ * the same target, so the widget resets the filter when the goal type changes.
+ *
+ * The azimuth includes the robot heading, so a target that isn't moving has an
+ * azimuth rate of zero even while the robot turns.
+ *
+ * @author sebastian
+ */
+class TargetFilter
+{
+    private static final double kAlpha = 0.5; // Weight of the measurement in the position estimate
+    private static final double kBeta = 0.1; // Weight of the measurement in the rate estimate
+    private static final double kAzimuthGateDeg = 5.0; // Max distance from the predicted azimuth
+    private static final double kRangeGateFraction = 0.25; // Max distance from the predicted range, as a fraction of it
+    private static final int kMaxOutliers = 3; // Outliers in a row before the filter switches to the new target
+    private static final long kMaxCoastNanos = 500000000L; // Time without measurements before the track is dropped
+    private static final double kConfidenceGain = 0.2; // How fast confidence rises with each measurement
+    private static final double kConfidenceDecay = 0.8; // Confidence is multiplied by this on every frame without one
+    static final double kPredictionHorizonSeconds = 0.1;
+
+    private boolean tracking = false;
+    private double azimuth, range; // Degrees, inches
+    private double azimuthRate, rangeRate; // Per second
+    private double confidence = 0.0;
+    private long lastTime; // Capture time of the last frame
+    private long lastMeasurementTime;
+    private int outliers = 0;
+
+    /* Called once per frame with its capture time, found is false if the frame had no target */
+    void update(long captureNanos, boolean found, double measuredAzimuth, double measuredRange)
+    {
+        if (!tracking)
+        {
+            if (found)
+            {
+                start(captureNanos, measuredAzimuth, measuredRange);
+            }
+            return;
+        }
+
+        double dt = (captureNanos - lastTime) / 1000000000.0;
+        if (dt <= 0.0)
+        {
+            return; // Same frame twice or out of order
+        }
+        lastTime = captureNanos;
+
+        // Predict
+        azimuth = wrapDegrees(azimuth + azimuthRate * dt);
+        range += rangeRate * dt;
+
+        if (!found)
+        {
+            lost(captureNanos);
+            return;
+        }
+
+        double azimuthResidual = wrapDegrees(measuredAzimuth - azimuth);
+        double rangeResidual = measuredRange - range;
+        if (Math.abs(azimuthResidual) > kAzimuthGateDeg || Math.abs(rangeResidual) > kRangeGateFraction * Math.abs(range))
+        {
+            // Probably a different target
+            if (++outliers >= kMaxOutliers)
+            {
+                start(captureNanos, measuredAzimuth, measuredRange);
+            }
+            else
+            {
+                lost(captureNanos);
+            }
+            return;
+        }
+
+        // Correct
+        outliers = 0;
+        lastMeasurementTime = captureNanos;
+        azimuth = wrapDegrees(azimuth + kAlpha * azimuthResidual);
+        range += kAlpha * rangeResidual;
+        azimuthRate += kBeta * azimuthResidual / dt;
+        rangeRate += kBeta * rangeResidual / dt;
+        confidence += kConfidenceGain * (1.0 - confidence);
+    }
+
+    /* Drops the track, the next measurement starts a new one */
+    void reset()
+    {
+        tracking = false;
+        confidence = 0.0;
+        azimuthRate = 0.0;
+        rangeRate = 0.0;
+        outliers = 0;
+    }
+
+    boolean isTracking()
+    {
+        return tracking;
+    }
+
+    double getAzimuth()
+    {
+        return azimuth;
+    }
+
+    double getRange()
+    {
+        return range;
+    }
+
+    /* Degrees per second */
+    double getAzimuthRate()
+    {
+        return azimuthRate;
+    }
+
+    /* Inches per second */
+    double getRangeRate()
+    {
+        return rangeRate;
+    }
+
+    /* Azimuth kPredictionHorizonSeconds after the last frame */
+    double getPredictedAzimuth()
+    {
+        return wrapDegrees(azimuth + azimuthRate * kPredictionHorizonSeconds);
+    }
+
+    double getPredictedRange()
+    {
+        return range + rangeRate * kPredictionHorizonSeconds;
+    }
+
+    /* 0 (no track) to 1 (a long run of consistent measurements) */
+    double getConfidence()
+    {
+        return confidence;
+    }
+
+    private void start(long captureNanos, double measuredAzimuth, double measuredRange)
+    {
+        tracking = true;
+        azimuth = measuredAzimuth;
+        range = measuredRange;
+        azimuthRate = 0.0;
+        rangeRate = 0.0;
+        confidence = kConfidenceGain;
+        lastTime = captureNanos;
+        lastMeasurementTime = captureNanos;
+        outliers = 0;
+    }
+
+    private void lost(long captureNanos)
+    {
+        confidence *= kConfidenceDecay;
+        if (captureNanos - lastMeasurementTime > kMaxCoastNanos)
+        {
+            tracking = false;
+            confidence = 0.0;
+            azimuthRate = 0.0;
+            rangeRate = 0.0;
+        }
+    }
+
+    private static double wrapDegrees(double angle)
+    {
+        while (angle > 180.0)
+        {
+            angle -= 360.0;
+        }
+        while (angle < -180.0)
+        {
+            angle += 360.0;
+        }
+        return angle;
+    }
+}
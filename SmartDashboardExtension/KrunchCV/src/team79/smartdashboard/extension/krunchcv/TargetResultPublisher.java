@@ -0,0 +1,123 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import edu.wpi.first.wpilibj.networktables2.type.NumberArray;
+import edu.wpi.first.wpilibj.tables.ITable;
+
+/**
+ * Sends the result of a frame to the robot as one number array, so the robot
+ * always reads values that belong together, can tell how old they are and can
+ * tell a new frame from one it already read. Layout of the array:
+ *
+ *   0 frame sequence number
+ *   1 capture time (milliseconds since the epoch, dashboard clock)
+ *   2 latency from capture to result in milliseconds (camera latency + processing),
+ *     the heading used for the azimuth is the one from the capture time
+ *   3 found (1 or 0)
+ *   4 azimuth in degrees
+ *   5 range in inches, 0 for a pyramid goal while "Pyramid Target Height Inches" is 0
+ *   6-9 target box x, y, width, height in pixels
+ *   10 tracking (1 or 0), the rest is only meaningful while it is 1
+ *   11-12 filtered azimuth and range
+ *   13-14 azimuth rate in degrees per second, range rate in inches per second
+ *   15-16 azimuth and range predicted TargetFilter.kPredictionHorizonSeconds ahead
+ *   17 confidence, 0 to 1
+ *
+ * A frame is only sent when found changes or azimuth or range moved by more
+ * than their epsilons since the last one that was sent, and at least every
+ * kHeartbeatMillis so the robot can tell the dashboard is still running.
+ *
+ * @author sebastian
+ */
+class TargetResultPublisher
+{
+    static final String RESULT_KEY = "target";
+
+    static final int SEQUENCE = 0;
+    static final int CAPTURE_TIME_MS = 1;
+    static final int LATENCY_MS = 2;
+    static final int FOUND = 3;
+    static final int AZIMUTH = 4;
+    static final int RANGE = 5;
+    static final int BOX_X = 6;
+    static final int BOX_Y = 7;
+    static final int BOX_WIDTH = 8;
+    static final int BOX_HEIGHT = 9;
+    static final int TRACKING = 10;
+    static final int FILTERED_AZIMUTH = 11;
+    static final int FILTERED_RANGE = 12;
+    static final int AZIMUTH_RATE = 13;
+    static final int RANGE_RATE = 14;
+    static final int PREDICTED_AZIMUTH = 15;
+    static final int PREDICTED_RANGE = 16;
+    static final int CONFIDENCE = 17;
+    static final int LENGTH = 18;
+
+    private static final long kHeartbeatMillis = 500;
+
+    private final NumberArray packed = new NumberArray();
+
+    // Last result that was sent
+    private boolean sentAny = false;
+    private boolean lastFound;
+    private double lastAzimuth, lastRange;
+    private long lastSentMillis;
+
+    TargetResultPublisher()
+    {
+        packed.setSize(LENGTH);
+    }
+
+    /* Fills record (LENGTH long) with the result of a frame, laid out like the array that is sent */
+    static void pack(double[] record, long sequence, long captureMillis, double latencyMs,
+            boolean found, double azimuth, double range, int x, int y, int width, int height, TargetFilter filter)
+    {
+        record[SEQUENCE] = sequence;
+        record[CAPTURE_TIME_MS] = captureMillis;
+        record[LATENCY_MS] = latencyMs;
+        record[FOUND] = found ? 1.0 : 0.0;
+        record[AZIMUTH] = found ? azimuth : 0.0;
+        record[RANGE] = found ? range : 0.0;
+        record[BOX_X] = found ? x : 0;
+        record[BOX_Y] = found ? y : 0;
+        record[BOX_WIDTH] = found ? width : 0;
+        record[BOX_HEIGHT] = found ? height : 0;
+        boolean tracking = filter.isTracking();
+        record[TRACKING] = tracking ? 1.0 : 0.0;
+        record[FILTERED_AZIMUTH] = tracking ? filter.getAzimuth() : 0.0;
+        record[FILTERED_RANGE] = tracking ? filter.getRange() : 0.0;
+        record[AZIMUTH_RATE] = tracking ? filter.getAzimuthRate() : 0.0;
+        record[RANGE_RATE] = tracking ? filter.getRangeRate() : 0.0;
+        record[PREDICTED_AZIMUTH] = tracking ? filter.getPredictedAzimuth() : 0.0;
+        record[PREDICTED_RANGE] = tracking ? filter.getPredictedRange() : 0.0;
+        record[CONFIDENCE] = filter.getConfidence();
+    }
+
+    /* Sends a record from pack if it differs enough from the last one sent. Returns true if it was sent */
+    synchronized boolean publish(ITable table, double[] record, double azimuthEpsilon, double rangeEpsilon)
+    {
+        boolean found = record[FOUND] != 0.0;
+        double azimuth = record[AZIMUTH];
+        double range = record[RANGE];
+        long captureMillis = (long) record[CAPTURE_TIME_MS];
+        boolean changed = !sentAny || found != lastFound
+                || (found && (Math.abs(azimuth - lastAzimuth) > azimuthEpsilon || Math.abs(range - lastRange) > rangeEpsilon))
+                || captureMillis - lastSentMillis >= kHeartbeatMillis;
+        if (!changed)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < LENGTH; i++)
+        {
+            packed.set(i, record[i]);
+        }
+        table.putValue(RESULT_KEY, packed);
+
+        sentAny = true;
+        lastFound = found;
+        lastAzimuth = azimuth;
+        lastRange = range;
+        lastSentMillis = captureMillis;
+        return true;
+    }
+}
@@ -0,0 +1,259 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import com.googlecode.javacv.cpp.opencv_core.IplImage;
+import edu.wpi.first.wpijavacv.DaisyExtensions;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Times each stage of the vision pipeline separately, and the whole processImage
+ * call, on the Distance+Resolution Tests sample images. The blob stages time the
+ * Java blob labeling against the contours and rectangular stages it replaces. Every measurement starts
+ * from an untouched copy of the sample image so overlays drawn by one iteration
+ * never leak into the next one. The widget runs on local tables (see
+ * LocalTable), so the publish stage times the same work as sending the result
+ * to the robot, without the network.
+ *
+ * Results are written as CSV (one row per resolution and stage) so runs from
+ * different releases can be compared.
+ *
+ * @author sebastian
+ */
+public class VisionBenchmark
+{
+    private static final String[] RESOLUTIONS = {"160x120", "320x240", "640x480"};
+    private static final String RESOLUTION_TESTS_DIR = "Distance+Resolution Tests";
+    private static final int DEFAULT_WARMUP_ITERATIONS = 50;
+    private static final int DEFAULT_MEASURED_ITERATIONS = 200;
+
+    /* A stage is timed around run() only, prepare() gets it into the state it expects */
+    private static abstract class Stage
+    {
+        final String name;
+
+        Stage(String name)
+        {
+            this.name = name;
+        }
+
+        abstract void prepare(KrunchCVWidget widget, SampleFrame frame);
+        abstract void run(KrunchCVWidget widget, SampleFrame frame);
+    }
+
+    private static Stage[] createStages()
+    {
+        return new Stage[] {
+            new Stage("hsv") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                }
+            },
+            new Stage("threshold") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.thresholdHSV();
+                }
+            },
+            new Stage("close") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                    widget.thresholdHSV();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.closeHoles();
+                }
+            },
+            new Stage("contours") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                    widget.thresholdHSV();
+                    widget.closeHoles();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.findContours();
+                    widget.releaseContourMemory();
+                }
+            },
+            new Stage("rectangular") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    frame.restore();
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                    widget.thresholdHSV();
+                    widget.closeHoles();
+                    widget.findContours();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.processForRectangularGoals(0.0);
+                    widget.releaseContourMemory();
+                }
+            },
+            // Java blob labeling, the alternative to the contours and rectangular stages
+            new Stage("blobs") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                    widget.thresholdHSV();
+                    widget.closeHoles();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.labelBlobs();
+                }
+            },
+            new Stage("blob rectangular") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    frame.restore();
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                    widget.thresholdHSV();
+                    widget.closeHoles();
+                    widget.labelBlobs();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.processBlobsForRectangularGoals(0.0);
+                }
+            },
+            new Stage("pyramid") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    frame.restore();
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                    widget.thresholdHSV();
+                    widget.closeHoles();
+                    widget.findAllContours();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.processForPyramidGoals(0.0);
+                    widget.releaseContourMemory();
+                }
+            },
+            // Drawing the full overlay of a frame, which processImage does after the result is sent
+            new Stage("overlay") {
+                final Overlay overlay = new Overlay();
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    frame.restore();
+                    widget.convertToHSV(DaisyExtensions.getIplImage(frame.work));
+                    widget.thresholdHSV();
+                    widget.closeHoles();
+                    widget.findContours();
+                    widget.processForRectangularGoals(0.0);
+                    widget.captureOverlay(overlay);
+                    widget.releaseContourMemory();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    overlay.draw(frame.work, false);
+                }
+            },
+            // Packing the result and putting it in the table, which goes through the change check every time
+            new Stage("publish") {
+                long sequence = 0;
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.publishResult(++sequence, System.currentTimeMillis(), 0);
+                }
+            },
+            new Stage("frame") {
+                void prepare(KrunchCVWidget widget, SampleFrame frame) {
+                    frame.restore();
+                }
+                void run(KrunchCVWidget widget, SampleFrame frame) {
+                    widget.processImage(frame.work);
+                }
+            },
+        };
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: VisionBenchmark <Sample Images dir> <settings file> "
+                    + "[warmup iterations] [measured iterations] [output csv]");
+            return;
+        }
+
+        File sampleDir = new File(args[0], RESOLUTION_TESTS_DIR);
+        int warmup = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_WARMUP_ITERATIONS;
+        int measured = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_MEASURED_ITERATIONS;
+
+        try
+        {
+            Writer out = (args.length > 4) ? new FileWriter(args[4]) : new PrintWriter(System.out);
+            PrintWriter csv = new PrintWriter(out);
+            csv.println("resolution,stage,samples,mean_us,p50_us,p95_us,min_us,max_us");
+
+            LocalTable table = new LocalTable();
+            table.setLogging(false); // Millions of puts
+            KrunchCVWidget widget = KrunchCVWidget.createOffline(args[1], table, new LocalTable());
+            Stage[] stages = createStages();
+
+            for (String resolution : RESOLUTIONS)
+            {
+                SampleFrame[] frames = SampleFrame.loadTree(new File(sampleDir, resolution)).toArray(new SampleFrame[0]);
+                if (frames.length == 0)
+                {
+                    System.err.println("No images found for " + resolution);
+                    continue;
+                }
+
+                IplImage first = DaisyExtensions.getIplImage(frames[0].work);
+                widget.allocateImages(first.width(), first.height());
+
+                for (Stage stage : stages)
+                {
+                    long[] samples = new long[measured * frames.length];
+                    for (int i = 0; i < warmup; i++)
+                    {
+                        for (SampleFrame frame : frames)
+                        {
+                            stage.prepare(widget, frame);
+                            stage.run(widget, frame);
+                        }
+                    }
+                    int n = 0;
+                    for (int i = 0; i < measured; i++)
+                    {
+                        for (SampleFrame frame : frames)
+                        {
+                            stage.prepare(widget, frame);
+                            long startTime = System.nanoTime();
+                            stage.run(widget, frame);
+                            samples[n++] = System.nanoTime() - startTime;
+                        }
+                    }
+                    writeRow(csv, resolution, stage.name, samples);
+                }
+            }
+
+            csv.flush();
+            out.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        System.exit(0);
+    }
+
+    private static void writeRow(PrintWriter csv, String resolution, String stage, long[] samples)
+    {
+        Arrays.sort(samples);
+        long total = 0;
+        for (long sample : samples)
+        {
+            total += sample;
+        }
+        csv.format("%s,%s,%d,%.1f,%.1f,%.1f,%.1f,%.1f%n", resolution, stage, samples.length,
+                total / 1000.0 / samples.length,
+                samples[samples.length / 2] / 1000.0,
+                samples[(int)(samples.length * 0.95)] / 1000.0,
+                samples[0] / 1000.0,
+                samples[samples.length - 1] / 1000.0);
+        csv.flush();
+    }
+}
@@ -0,0 +1,101 @@
+package team79.smartdashboard.extension.krunchcv;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot of the tunable settings the frame thread uses, built from an array
+ * of raw values indexed by setting (see indexOf). It is never modified after it
+ * is built, so a frame that holds on to a snapshot always sees one consistent
+ * set of values, and reading them costs no hashing or unboxing.
+ *
+ * @author sebastian
+ */
+final class VisionSettings
+{
+    // SmartDashboard keys of the settings
+    static final String HUE_MIN_KEY = "HUE MIN";
+    static final String HUE_MAX_KEY = "HUE MAX";
+    static final String SAT_MIN_KEY = "SAT MIN";
+    static final String SAT_MAX_KEY = "SAT MAX";
+    static final String VAL_MIN_KEY = "VAL MIN";
+    static final String VAL_MAX_KEY = "VAL MAX";
+    static final String GOAL_ALIGN_TOLERANCE_KEY = "G.O.A.T.";
+    static final String CAMERA_HEIGHT_INCHES_KEY = "Camera Height in Inches";
+    static final String CAMERA_PITCH_DEG_LOW_KEY = "Camera Pitch Degree Low";
+    static final String CAMERA_PITCH_DEG_HIGH_KEY = "Camera Pitch Degree High";
+    static final String TOP_TARGET_HEIGHT_INCHES_KEY = "Top Target Height Inches";
+    static final String MIN_WIDTH_RECT_GOALS_KEY = "Min Width Rect Goals";
+    static final String MAX_WIDTH_RECT_GOALS_KEY = "Max Width Rect Goals";
+    static final String PYRAMID_TARGET_HEIGHT_INCHES_KEY = "Pyramid Target Height Inches";
+
+    // Index of each setting in the raw values array, in the same order as KEYS
+    static final int HUE_MIN = 0;
+    static final int HUE_MAX = 1;
+    static final int SAT_MIN = 2;
+    static final int SAT_MAX = 3;
+    static final int VAL_MIN = 4;
+    static final int VAL_MAX = 5;
+    static final int GOAL_ALIGN_TOLERANCE = 6;
+    static final int CAMERA_HEIGHT_INCHES = 7;
+    static final int CAMERA_PITCH_DEG_LOW = 8;
+    static final int CAMERA_PITCH_DEG_HIGH = 9;
+    static final int TOP_TARGET_HEIGHT_INCHES = 10;
+    static final int MIN_WIDTH_RECT_GOALS = 11;
+    static final int MAX_WIDTH_RECT_GOALS = 12;
+    static final int PYRAMID_TARGET_HEIGHT_INCHES = 13;
+    static final String[] KEYS = {HUE_MIN_KEY, HUE_MAX_KEY, SAT_MIN_KEY, SAT_MAX_KEY, VAL_MIN_KEY, VAL_MAX_KEY,
+        GOAL_ALIGN_TOLERANCE_KEY, CAMERA_HEIGHT_INCHES_KEY, CAMERA_PITCH_DEG_LOW_KEY, CAMERA_PITCH_DEG_HIGH_KEY,
+        TOP_TARGET_HEIGHT_INCHES_KEY, MIN_WIDTH_RECT_GOALS_KEY, MAX_WIDTH_RECT_GOALS_KEY,
+        PYRAMID_TARGET_HEIGHT_INCHES_KEY};
+
+    // Key -> index, so a changed key can be applied without searching
+    private static final Map<String, Integer> INDEX = new HashMap<String, Integer>();
+    static
+    {
+        for (int i = 0; i < KEYS.length; i++)
+        {
+            INDEX.put(KEYS[i], i);
+        }
+    }
+
+    // Threshold bounds for cvInRangeS. cvThreshold floors its threshold on 8 bit
+    // images and keeps MIN < value <= MAX, so the lower bounds are floor(MIN) + 1.
+    final double hueLower, satLower, valLower;
+    final double hueUpper, satUpper, valUpper;
+
+    final double goalAlignTolerance;
+    final double cameraHeightInches;
+    final double cameraPitchDegLow;
+    final double cameraPitchDegHigh;
+    final double topTargetHeightInches;
+    final double minWidthRectGoals;
+    final double maxWidthRectGoals;
+    final double pyramidTargetHeightInches;
+
+    /* values is copied from, not kept */
+    VisionSettings(double[] values)
+    {
+        hueLower = Math.floor(values[HUE_MIN]) + 1;
+        satLower = Math.floor(values[SAT_MIN]) + 1;
+        valLower = Math.floor(values[VAL_MIN]) + 1;
+        hueUpper = Math.floor(values[HUE_MAX]);
+        satUpper = Math.floor(values[SAT_MAX]);
+        valUpper = Math.floor(values[VAL_MAX]);
+        goalAlignTolerance = values[GOAL_ALIGN_TOLERANCE];
+        cameraHeightInches = values[CAMERA_HEIGHT_INCHES];
+        cameraPitchDegLow = values[CAMERA_PITCH_DEG_LOW];
+        cameraPitchDegHigh = values[CAMERA_PITCH_DEG_HIGH];
+        topTargetHeightInches = values[TOP_TARGET_HEIGHT_INCHES];
+        minWidthRectGoals = values[MIN_WIDTH_RECT_GOALS];
+        maxWidthRectGoals = values[MAX_WIDTH_RECT_GOALS];
+        pyramidTargetHeightInches = values[PYRAMID_TARGET_HEIGHT_INCHES];
+    }
+
+    /* Index of the setting with this key in the raw values array, or -1 if the frame thread doesn't use it */
+    static int indexOf(String key)
+    {
+        Integer index = INDEX.get(key);
+        return (index == null) ? -1 : index;
+    }
+}